@@ -0,0 +1,99 @@
+package phylonet.util;
+
+import java.util.Random;
+
+/**
+ * Microbenchmark of the batch intersection sizes of BitSet, as used
+ * when the weights of a batch of tripartitions are computed over gene
+ * trees: the three sides of each tripartition are intersected with the
+ * taxa of each group of gene trees.
+ *
+ * Not part of ASTRAL (make.sh does not build the bench directory).
+ * To run, from the top directory:
+ *   javac -d /tmp/bench main/phylonet/util/BitSet.java bench/phylonet/util/BitSetBenchmark.java
+ *   java -cp /tmp/bench phylonet.util.BitSetBenchmark [taxa] [groups] [batch]
+ *
+ * @author smirarab
+ *
+ */
+public class BitSetBenchmark {
+
+	private static final int ROUNDS = 100;
+
+	public static void main(String[] args) {
+		int taxa = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int groups = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int batch = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+		Random random = new Random(1);
+
+		// Taxa of groups of gene trees; about a tenth of the taxa are missing
+		BitSet[] masks = new BitSet[groups];
+		for (int g = 0; g < groups; g++) {
+			masks[g] = new BitSet(taxa);
+			for (int i = 0; i < taxa; i++) {
+				if (random.nextInt(10) != 0) {
+					masks[g].set(i);
+				}
+			}
+		}
+		// Sides of tripartitions: side x of tripartition k is sides[x * batch + k]
+		BitSet[] sides = new BitSet[3 * batch];
+		for (int x = 0; x < sides.length; x++) {
+			sides[x] = new BitSet(taxa);
+		}
+		for (int k = 0; k < batch; k++) {
+			for (int i = 0; i < taxa; i++) {
+				sides[random.nextInt(3) * batch + k].set(i);
+			}
+		}
+		System.out.println("taxa: " + taxa + ", groups: " + groups + ", batch: " + batch);
+
+		int[] sizes = new int[groups * sides.length];
+		// Fastest round of each method; the order alternates between rounds
+		long[] nanos = { Long.MAX_VALUE, Long.MAX_VALUE };
+		long check = 0;
+		for (int round = 0; round < ROUNDS; round++) {
+			for (int m = 0; m < 2; m++) {
+				boolean batched = (round + m) % 2 == 1;
+				long start = System.nanoTime();
+				long sum = batched ? batched(masks, sides, sizes) : separate(masks, sides, sizes);
+				long time = System.nanoTime() - start;
+				check += batched ? -sum : sum;
+				int i = batched ? 1 : 0;
+				nanos[i] = Math.min(nanos[i], time);
+			}
+		}
+		if (check != 0) {
+			throw new AssertionError("batch and separate intersection sizes differ");
+		}
+		double tripartitions = (double) groups * batch;
+		System.out.println(String.format(
+				"intersectionSize for each side:   %6.1f ns per tripartition and group",
+				nanos[0] / tripartitions));
+		System.out.println(String.format(
+				"intersectionSizes(sets, sizes):   %6.1f ns per tripartition and group",
+				nanos[1] / tripartitions));
+	}
+
+	private static long separate(BitSet[] masks, BitSet[] sides, int[] sizes) {
+		long sum = 0;
+		for (int g = 0; g < masks.length; g++) {
+			for (int x = 0; x < sides.length; x++) {
+				sizes[g * sides.length + x] = sides[x].intersectionSize(masks[g]);
+				sum += sizes[g * sides.length + x];
+			}
+		}
+		return sum;
+	}
+
+	private static long batched(BitSet[] masks, BitSet[] sides, int[] sizes) {
+		long sum = 0;
+		for (int g = 0; g < masks.length; g++) {
+			masks[g].intersectionSizes(sides, sizes, g * sides.length);
+			for (int x = 0; x < sides.length; x++) {
+				sum += sizes[g * sides.length + x];
+			}
+		}
+		return sum;
+	}
+}
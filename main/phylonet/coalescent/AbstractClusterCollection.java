@@ -2,6 +2,7 @@ package phylonet.coalescent;
 
 import java.util.ArrayList;
 import java.util.ConcurrentModificationException;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
@@ -9,12 +10,20 @@ import java.util.Set;
 
 import phylonet.tree.model.sti.STITreeCluster;
 import phylonet.tree.model.sti.STITreeCluster.Vertex;
+import phylonet.util.BitSet;
 
 public abstract class AbstractClusterCollection implements IClusterCollection, Cloneable {
 
 	protected ArrayList<Set<Vertex>> clusters;
 	protected int topClusterLength;
 	int totalcount = 0;
+	
+	/**
+	 * Built on the second call to getContainedClusters;
+	 * dropped when clusters are added or removed.
+	 */
+	private volatile ContainmentIndex containmentIndex = null;
+	private int containmentQueries = 0;
 
 	protected void initialize(int len) {
 		this.topClusterLength = len;
@@ -44,6 +53,7 @@ public abstract class AbstractClusterCollection implements IClusterCollection, C
 		boolean added = clusters.get(size).add(vertex);
 		if (added) {
 			totalcount++;
+			containmentIndex = null;
 		}
 		return added;
 	}
@@ -54,6 +64,7 @@ public abstract class AbstractClusterCollection implements IClusterCollection, C
 		boolean removed = clusters.get(size).remove(vertex);
 		if(removed){
 			totalcount--;
+			containmentIndex = null;
 		}
 		return removed;
 	}
@@ -70,6 +81,12 @@ public abstract class AbstractClusterCollection implements IClusterCollection, C
 		AbstractClusterCollection ret = newInstance(size);
 		addClusterToRet(v, size, ret);
 		
+		ContainmentIndex index = getContainmentIndex();
+		if (index != null) {
+			index.addContainedClusters(cluster, size, this, ret);
+			return ret;
+		}
+		
 		for (int i = size - 1 ; i > 0; i--) {
 			Set<Vertex> sizeClusters = clusters.get(i);
 			if (sizeClusters == null) continue;
@@ -82,32 +99,136 @@ public abstract class AbstractClusterCollection implements IClusterCollection, C
 		return ret;
 	}
 	
+	/**
+	 * A collection queried only once is scanned; 
+	 * the index is built the second time.
+	 * @return null if the index is not built yet
+	 */
+	private ContainmentIndex getContainmentIndex() {
+		ContainmentIndex index = containmentIndex;
+		if (index != null) {
+			return index;
+		}
+		synchronized (this) {
+			if (containmentIndex == null && ++containmentQueries > 1) {
+				containmentIndex = new ContainmentIndex(clusters);
+			}
+			return containmentIndex;
+		}
+	}
+	
 	protected void addClusterToRet(Vertex vertex, int size, IClusterCollection ret) {
 		ret.addCluster(vertex, size);	
 	}
 
+	/**
+	 * Resolutions are produced one at a time as the returned iterable
+	 * is traversed; they are never all kept by this collection. 
+	 * Each split of the top cluster is given once.
+	 * The collection should not change while resolutions are traversed.
+	 */
 	@Override
 	public Iterable<VertexPair> getClusterResolutions() {
 		//System.out.println(topClusterLength+ " "+getTopVertex());
-		//TODO: return an iterator directly instead of building a collection.
-		ArrayList<VertexPair> ret = new ArrayList<VertexPair>();
-		/*Iterable<VertexPair> r= new Iterable<IClusterCollection.VertexPair>() {
+		final int clusterSize = topClusterLength;
+		final Vertex v = this.getTopVertex();
+		final BitSet top = v.getCluster().getBitSet();
+		/*
+		 * All clusters here are inside the top cluster, so the only partner
+		 * of a smaller side is its complement. Bigger sides are found by bitset.
+		 */
+		final HashMap<BitSet, Vertex> bigSides = new HashMap<BitSet, Vertex>();
+		for (int i = clusterSize - clusterSize / 2; i < clusterSize; i++) {
+			Set<Vertex> right = this.clusters.get(i);
+			if (right == null) {
+				continue;
+			}
+			for (Vertex bigv : right) {
+				bigSides.put(bigv.getCluster().getBitSet(), bigv);
+			}
+		}
+		return new Iterable<VertexPair>() {
 			
 			@Override
 			public Iterator<VertexPair> iterator() {
 				
 				return new Iterator<VertexPair>() {
+					/*
+					 * Size of the smaller side and an iterator over smaller sides
+					 */
+					int i = 0;
+					Iterator<Vertex> left = null;
+					/*
+					 * When both sides have the same size, each split is seen from
+					 * both sides; only the first one is given.
+					 */
+					Set<Vertex> paired = new HashSet<Vertex>();
+					VertexPair next = null;
 
 					@Override
 					public boolean hasNext() {
-						// TODO Auto-generated method stub
-						return false;
+						if (next == null) {
+							next = advance();
+						}
+						return next != null;
 					}
 
 					@Override
 					public VertexPair next() {
-						// TODO Auto-generated method stub
-						return null;
+						if (! hasNext()) {
+							throw new NoSuchElementException();
+						}
+						VertexPair ret = next;
+						next = null;
+						return ret;
+					}
+					
+					/**
+					 * @return the next resolution, or null if there is none
+					 */
+					private VertexPair advance() {
+						while (true) {
+							while (left != null && left.hasNext()) {
+								Vertex smallV = left.next();
+								BitSet complement = new BitSet(top.length());
+								complement.or(top);
+								complement.andNot(smallV.getCluster().getBitSet());
+								Vertex bigv = bigSides.get(complement);
+								if (bigv == null || bigv.getCluster().getClusterSize() != clusterSize - i) {
+									continue;
+								}
+								if (2 * i == clusterSize) {
+									if (paired.contains(bigv)) {
+										continue;
+									}
+									paired.add(smallV);
+								}
+								return new VertexPair(smallV, bigv, v);
+							}
+							if (!nextSize()) {
+								return null;
+							}
+						}
+					}
+					
+					/**
+					 * Moves to the next size with clusters on both sides
+					 */
+					private boolean nextSize() {
+						while (++i <= (clusterSize / 2)) {
+							Set<Vertex> leftSet = clusters.get(i);
+							if (leftSet == null || leftSet.size() == 0) {
+								continue;
+							}
+							Set<Vertex> rightSet = clusters.get(clusterSize - i);
+							if (rightSet == null || rightSet.size() == 0) {
+								continue;
+							}
+							left = leftSet.iterator();
+							return true;
+						}
+						left = null;
+						return false;
 					}
 
 					@Override
@@ -116,32 +237,7 @@ public abstract class AbstractClusterCollection implements IClusterCollection, C
 					}
 				};
 			}
-		};*/
-		
-		int clusterSize = topClusterLength;
-		Vertex v = this.getTopVertex();
-		for (int i = 1; i <= (clusterSize / 2); i++) {
-			Set<Vertex> left = this.clusters.get(i);
-			if (left == null || left.size() == 0) {
-				continue;
-			}
-			Set<Vertex> right = this.clusters.get(clusterSize - i);
-			if (right == null || right.size() == 0) {
-				continue;
-			}
-			for (Vertex smallV : left) {
-				
-				for (Vertex bigv : right) {
-					if (!smallV.getCluster().isDisjoint(bigv.getCluster())) {
-						continue;
-					}
-					VertexPair bi = new VertexPair(
-							smallV, bigv, v);
-					ret.add(bi);
-				}
-			}
-		}
-		return ret;
+		};
 	}
 	
 	public abstract AbstractClusterCollection newInstance(int size);
@@ -192,6 +288,8 @@ public abstract class AbstractClusterCollection implements IClusterCollection, C
 	public AbstractClusterCollection clone() throws CloneNotSupportedException {
 		AbstractClusterCollection clone = (AbstractClusterCollection) super.clone();
 		clone.clusters = new ArrayList<Set<Vertex>>();
+		clone.containmentIndex = null;
+		clone.containmentQueries = 0;
 		
 		for (Set<Vertex> vset : this.clusters) {
 			HashSet<Vertex> nset = new HashSet<STITreeCluster.Vertex>();
@@ -203,6 +301,118 @@ public abstract class AbstractClusterCollection implements IClusterCollection, C
 		
 		return clone;
 	}
-	
 
+	/**
+	 * Finds the clusters of a collection that are inside a given cluster 
+	 * without testing every cluster of the collection.
+	 * 
+	 * Each cluster is filed under one of its taxa, its key. A cluster can only 
+	 * be inside another cluster if its key is there as well, so only 
+	 * the buckets of taxa in the query need to be tested. Keys are 
+	 * the first taxon after a position given by the hash of the cluster, 
+	 * which spreads clusters evenly over buckets.
+	 * 
+	 * Clusters are numbered in the same order that a scan of the 
+	 * collection visits them (larger sizes first), and results are 
+	 * given in that order. 
+	 */
+	private static final class ContainmentIndex {
+		
+		private final Vertex[] vertices;
+		private final int[] sizes;
+		/**
+		 * For each taxon, numbers of clusters keyed by it, in increasing order
+		 */
+		private final int[][] buckets;
+		
+		ContainmentIndex(ArrayList<Set<Vertex>> clusters) {
+			int count = 0, taxa = 0;
+			for (Set<Vertex> sizeClusters : clusters) {
+				if (sizeClusters == null) continue;
+				count += sizeClusters.size();
+				for (Vertex vertex : sizeClusters) {
+					taxa = Math.max(taxa, vertex.getCluster().getBitSet().length());
+				}
+			}
+			vertices = new Vertex[count];
+			sizes = new int[count];
+			int[] keys = new int[count];
+			int[] bucketSizes = new int[taxa];
+			int n = 0;
+			for (int i = clusters.size() - 1; i > 0; i--) {
+				Set<Vertex> sizeClusters = clusters.get(i);
+				if (sizeClusters == null) continue;
+				for (Vertex vertex : sizeClusters) {
+					BitSet bs = vertex.getCluster().getBitSet();
+					int key = bs.nextSetBit((vertex.getCluster().hashCode() & 0x7fffffff) % taxa);
+					if (key < 0) {
+						key = bs.nextSetBit(0);
+					}
+					vertices[n] = vertex;
+					sizes[n] = i;
+					keys[n++] = key;
+					bucketSizes[key]++;
+				}
+			}
+			buckets = new int[taxa][];
+			for (int t = 0; t < taxa; t++) {
+				buckets[t] = new int[bucketSizes[t]];
+				bucketSizes[t] = 0;
+			}
+			for (int o = 0; o < n; o++) {
+				buckets[keys[o]][bucketSizes[keys[o]]++] = o;
+			}
+		}
+		
+		/**
+		 * Adds to ret clusters smaller than size that are inside the given cluster
+		 */
+		void addContainedClusters(STITreeCluster cluster, int size,
+				AbstractClusterCollection collection, AbstractClusterCollection ret) {
+			int first = firstSmallerThan(size);
+			BitSet found = new BitSet(vertices.length);
+			BitSet bs = cluster.getBitSet();
+			for (int t = bs.nextSetBit(0); t >= 0 && t < buckets.length; t = bs.nextSetBit(t + 1)) {
+				int[] bucket = buckets[t];
+				for (int j = lowerBound(bucket, first); j < bucket.length; j++) {
+					int o = bucket[j];
+					if (cluster.containsCluster(vertices[o].getCluster())) {
+						found.set(o);
+					}
+				}
+			}
+			for (int o = found.nextSetBit(0); o >= 0; o = found.nextSetBit(o + 1)) {
+				collection.addClusterToRet(vertices[o], sizes[o], ret);
+			}
+		}
+		
+		/**
+		 * @return the number of the first cluster with fewer than size taxa
+		 */
+		private int firstSmallerThan(int size) {
+			int lo = 0, hi = sizes.length;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (sizes[mid] >= size) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+		
+		private static int lowerBound(int[] bucket, int value) {
+			int lo = 0, hi = bucket.length;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (bucket[mid] < value) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+	}
 }
@@ -6,58 +6,142 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.Stack;
+import java.util.concurrent.RecursiveTask;
 
 import phylonet.coalescent.IClusterCollection.VertexPair;
 import phylonet.tree.model.Tree;
 import phylonet.tree.model.sti.STITreeCluster;
 import phylonet.tree.model.sti.STITreeCluster.Vertex;
+import phylonet.util.BitSet;
 
 /**
- * This class implements the dynamic programming
+ * This class implements the dynamic programming. 
+ * Each task solves one vertex of the DP. Tasks of sub-problems are kept
+ * on an explicit stack instead of being solved recursively (see run).
+ * When more than one thread is used, the two sides of a resolution 
+ * are solved as separate fork/join tasks. 
+ * The two sides of a resolution are disjoint clusters, and resolutions
+ * of one vertex are visited one after the other. Thus, two tasks running
+ * at the same time never touch the same vertex, and fork/join provides
+ * the needed memory visibility. 
  * @author smirarab
  *
  * @param <T>
  */
-public abstract class AbstractComputeMinCostTask<T> {
+public abstract class AbstractComputeMinCostTask<T> extends RecursiveTask<Double> {
+	
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Which pass of the DP a task performs
+	 */
+	static final byte EXACT = 0, ESTIMATE = 1, GREEDY = 2;
+	
+	/**
+	 * Smaller clusters are not forked; they are solved in the current thread. 
+	 */
+	static final int PARALLEL_CLUSTER_SIZE = 4;
 	
 	AbstractInference<T> inference;
+	final DPTable dp;
+	final DPStatistics stats;
 	Vertex v;
 	IClusterCollection clusters;
 	double target = 0.0;
+	byte mode = EXACT;
+	
+	/*
+	 * State of the task while it waits for sides of a resolution 
+	 */
+	/**
+	 * Sorted resolutions of v, and the index of the next one to solve
+	 */
+	private ArrayList<VertexPair> resolutions;
+	private int nextResolution = 0;
+	/**
+	 * The resolution being solved, and the score of v when it was started
+	 */
+	private VertexPair resolution;
+	private double best;
+	private boolean solvingSmallSide = false;
+	private double lscore;
+	/**
+	 * The smaller side, when it is forked
+	 */
+	private AbstractComputeMinCostTask<T> forked;
+	private boolean canSaveWork = true;
+	/**
+	 * Whether no other task can be running while this one runs, i.e.,
+	 * this task and its parents were not forked and are not waiting on 
+	 * forked tasks. Progress of the DP is saved only from such tasks.
+	 */
+	boolean quiet = false;
+	private double greedyScore = -1e18;
+	/**
+	 * The score of the task, once finished
+	 */
+	private double score;
+	/**
+	 * Reused for looking up saved weights by fingerprint
+	 */
+	private final long[] probe = new long[2];
 	
 	IClusterCollection containedVertecies;
     private SpeciesMapper spm;
 
+	@Override
 	protected Double compute() {
-		return computeMinCost();
+		return run(this);
 	}
 	
 	Double computeUpperBound(Vertex v1){
-		if (v1._done == 3) return v1._max_score;
-		if (v1._done == 2) {
-			if (v1._upper_bound < v1._estimated * inference.estimationFactor) return v1._upper_bound;
-			return v1._estimated * inference.estimationFactor;
-		}
-		if (v1._done == 1) return v1._upper_bound;
-		STITreeCluster c = v1.getCluster();
-		v1._upper_bound = inference.weightCalculator.getWeight((T) new Tripartition(c, c, c, false), this);
-		v1._done = 1;
-		return v1._upper_bound;
+		if (dp.getDone(v1) == DPTable.DONE) return dp.getMaxScore(v1);
+		if (dp.getDone(v1) == DPTable.ESTIMATED) {
+			if (dp.getUpperBound(v1) < dp.getEstimated(v1) * inference.estimationFactor) return dp.getUpperBound(v1);
+			return dp.getEstimated(v1) * inference.estimationFactor;
+		}
+		if (dp.getDone(v1) == DPTable.UPPER_BOUND) return dp.getUpperBound(v1);
+		dp.setUpperBound(v1, upperBoundWeight(v1.getCluster()));
+		dp.setDone(v1, DPTable.UPPER_BOUND);
+		return dp.getUpperBound(v1);
 	}
 
 	Double estimateUpperBound(Vertex v1){
-		if (v1._done == 3) return v1._max_score;
-		if (v1._done == 2) return v1._estimated;
-		if (v1._done == 1) return v1._upper_bound;
-		STITreeCluster c = v1.getCluster();
-		v1._upper_bound = inference.weightCalculator.getWeight((T) new Tripartition(c, c, c, false), this);
-		v1._done = 1;
-		return v1._upper_bound;
+		if (dp.getDone(v1) == DPTable.DONE) return dp.getMaxScore(v1);
+		if (dp.getDone(v1) == DPTable.ESTIMATED) return dp.getEstimated(v1);
+		if (dp.getDone(v1) == DPTable.UPPER_BOUND) return dp.getUpperBound(v1);
+		dp.setUpperBound(v1, upperBoundWeight(v1.getCluster()));
+		dp.setDone(v1, DPTable.UPPER_BOUND);
+		return dp.getUpperBound(v1);
+	}
+	
+	/**
+	 * The weight of the tripartition (c, c, c), which bounds the score of c.
+	 * Saved weights are looked up without building the tripartition.
+	 */
+	private double upperBoundWeight(STITreeCluster c) {
+		AbstractWeightCalculator<T> calculator = inference.weightCalculator;
+		if (!calculator.savesWeights()) {
+			stats.weights(mode, 1, 1);
+			return calculator.getWeight((T) new Tripartition(c, c, c, false), this);
+		}
+		BitSet b = c.getBitSet();
+		Tripartition.fingerprint(b, b, b, probe);
+		long saved = calculator.getSavedWeight(probe);
+		if (saved != WeightCache.MISSING) {
+			stats.weights(mode, 1, 0);
+			return saved;
+		}
+		stats.weights(mode, 1, 1);
+		return calculator.getWeight((T) new Tripartition(c, c, c, false), probe, this);
 	}
 	
 	public AbstractComputeMinCostTask(AbstractInference<T> inference, Vertex v, 
 			IClusterCollection clusters) {
 		this.inference = inference;
+		this.dp = inference.dpTable;
+		this.stats = inference.dpStatistics;
 		this.v = v;
 		this.clusters = clusters;
 		this.spm = GlobalMaps.taxonNameMap.getSpeciesIdMapper();
@@ -82,31 +166,82 @@ public abstract class AbstractComputeMinCostTask<T> {
 		}
 	}
 
+	/**
+	 * Runs a task of the DP. Tasks are not solved recursively; a task that
+	 * needs the score of a sub-problem returns the task of that sub-problem 
+	 * and waits on an explicit stack until the score is known. Thus, 
+	 * the depth of the Java stack does not grow with the number of taxa. 
+	 * @return the score of the task
+	 */
+	private static <T> double run(AbstractComputeMinCostTask<T> task) {
+		ArrayList<AbstractComputeMinCostTask<T>> waiting = 
+				new ArrayList<AbstractComputeMinCostTask<T>>();
+		AbstractComputeMinCostTask<T> current = task;
+		AbstractComputeMinCostTask<T> next = current.start();
+		while (true) {
+			if (next != null) {
+				waiting.add(current);
+				current = next;
+				next = current.start();
+			} else if (waiting.isEmpty()) {
+				return current.score;
+			} else {
+				double score = current.score;
+				current = waiting.remove(waiting.size() - 1);
+				next = current.resume(score);
+			}
+		}
+	}
+
+	/**
+	 * Starts the task
+	 * @return a sub-problem to solve before the task can go on (see resume),
+	 * 	or null if the task is finished and its score is set
+	 */
+	private AbstractComputeMinCostTask<T> start() {
+		switch (mode) {
+		case GREEDY:
+			return startGreedy();
+		case ESTIMATE:
+			return startEstimate();
+		default:
+			return startExact();
+		}
+	}
+
+	/**
+	 * Finishes the task with the given score
+	 * @return null, so that it can be returned by start and resume 
+	 */
+	private AbstractComputeMinCostTask<T> finish(double score) {
+		this.score = score;
+		this.resolutions = null;
+		return null;
+	}
+
 	/**
 	 * This is the dynamic programming
-	 * @return
-	 * @throws CannotResolveException
 	 */
-	
-	private double computeMinCost() {
+	private AbstractComputeMinCostTask<T> startExact() {
 		// Already calculated. Don't re-calculate.
-		if (v._done == 3) {
-			return v._max_score;
+		if (dp.getDone(v) == DPTable.DONE) {
+			return finish(dp.getMaxScore(v));
 		}
 		
-		if (v._done == 0){
-			double greedyScore = greedy();
-			System.err.println("Greedy score: " + (long) greedyScore / 4);
-			estimateUpperBound(v);
-			inference.estimationFactor = v._upper_bound / greedyScore;
-			System.err.println("estimationFactor: " + inference.estimationFactor);
-			double estimateScore = estimateMinCost();
-			System.err.println("Sub-optimal score: " + (long) estimateScore / 4);
+		// Only the root is not done here; it runs all passes, one after the other
+		if (dp.getDone(v) == DPTable.NOT_DONE){
+			return finish(solveAllPasses());
+		}
+		
+		// Out of time; this vertex is not used
+		if (inference.isOutOfTime()) {
+			return finish(Double.NEGATIVE_INFINITY);
 		}
 		
 		//
 		if (computeUpperBound(v) <= target) {
-			return computeUpperBound(v);
+			stats.vertexPruned(EXACT);
+			return finish(computeUpperBound(v));
 		}
 		
 		int clusterSize = v.getCluster().getClusterSize();
@@ -114,99 +249,46 @@ public abstract class AbstractComputeMinCostTask<T> {
 		// SIA: base case for singelton clusters.
 		if (clusterSize <= 1 || spm.isSingleSP(v.getCluster().getBitSet())) {
 			
-			v._max_score = 0;
+			dp.setMaxScore(v, 0);
 			
-			v._min_lc = (v._min_rc = null);
-			v._done = 3;
+			dp.setResolution(v, null, null, 0);
+			dp.setDone(v, DPTable.DONE);
 			
-			return v._max_score;
+			return finish(dp.getMaxScore(v));
 		}
 		
-		Iterable<VertexPair> clusterResolutions;
-		containedVertecies = clusters.getContainedClusters(v);
+		Iterable<VertexPair> clusterResolutions = candidateResolutions(clusterSize);
 		
-		if (clusterSize == GlobalMaps.taxonIdentifier.taxonCount()) {
-			clusterResolutions = new ArrayList<VertexPair>();
-			Vertex v1 = null;
-			int smallestSize = 1;
-			while (v1 == null) {
-				Set<Vertex> cs = containedVertecies.getSubClusters(smallestSize);
-				if (cs.size() != 0)
-					v1 = cs.iterator().next();
-				else 
-					smallestSize++;
-			}
-			for (Vertex v2: containedVertecies.getSubClusters(GlobalMaps.taxonIdentifier.taxonCount()-smallestSize))
-			{
-				if (v1.getCluster().isDisjoint(v2.getCluster())) {
-					VertexPair vp = new VertexPair(v1, v2, v);
-					((ArrayList<VertexPair>) clusterResolutions).add(vp);
-					break;
-				}
-			}
+		// Saved resolutions are used only once in this pass; they are
+		// released when v is done, so that a checkpoint keeps their order
+		resolutions = dp.getResolutions(v);
+		if (resolutions == null) {
+			resolutions = weighResolutions(clusterResolutions, clusterSize, EXACT);
 			
-		} else {
-			if (clusterSize >= GlobalMaps.taxonIdentifier.taxonCount() * inference.getCS()) { //obsolete
-				addComplementaryClusters(clusterSize);
-			}
-			clusterResolutions = containedVertecies.getClusterResolutions();
-		}
-		
-		if (v.clusterResolutions != null) clusterResolutions = v.clusterResolutions;
-		else {
-			ArrayList<VertexPair> clusterResolutionArrayList = new ArrayList<VertexPair>();
-			
-			for (VertexPair bi : clusterResolutions){
-				if (clusterSize == GlobalMaps.taxonIdentifier.taxonCount()) bi.weight = defaultWeightForFullClusters();
-				else bi.weight = inference.weightCalculator.getWeight(STB2T(bi), this);
+			for (VertexPair bi : resolutions){
 				computeUpperBound(bi.cluster1);
 				computeUpperBound(bi.cluster2);
-				bi.upperbound = bi.cluster1._upper_bound + bi.cluster2._upper_bound + bi.weight;
-				clusterResolutionArrayList.add(bi);
+				bi.upperbound = dp.getUpperBound(bi.cluster1) + dp.getUpperBound(bi.cluster2) + bi.weight;
 			}
 			
-			Collections.sort(clusterResolutionArrayList);
-			
-			clusterResolutions = clusterResolutionArrayList;
+			Collections.sort(resolutions);
 		}
-		for (VertexPair bi : clusterResolutions) {
-			Vertex smallV = bi.cluster1;
-			Vertex bigv = bi.cluster2;
-			
-			double lscore = computeUpperBound(smallV), rscore = computeUpperBound(bigv);
-			AbstractComputeMinCostTask<T> smallWork = newMinCostTask(
-					smallV, containedVertecies, v._max_score - bi.weight - rscore);
-			lscore = smallWork.computeMinCost();
-			
-			AbstractComputeMinCostTask<T> bigWork = newMinCostTask(
-					bigv, containedVertecies, v._max_score - bi.weight - lscore);
-			rscore = bigWork.computeMinCost();
-			
-			if (lscore + rscore + bi.weight <= v._max_score) {
-				continue;
-			}
-			v._max_score = (lscore + rscore + bi.weight);
-			v._min_lc = smallV;
-			v._min_rc = bigv;
-			v._c = bi.weight;
-		}
-		v.clusterResolutions = null;
-		v._done = 3;
-		return v._max_score;
+		return nextResolution();
 	}
 
-	private double estimateMinCost(){
+	private AbstractComputeMinCostTask<T> startEstimate() {
 		estimateUpperBound(v);
 		// Already calculated. Don't re-calculate.
-		if (v._done == 3) {
-			return v._max_score;
+		if (dp.getDone(v) == DPTable.DONE) {
+			return finish(dp.getMaxScore(v));
 		}
-		if (v._done == 2) {
-			return v._estimated;
+		if (dp.getDone(v) == DPTable.ESTIMATED) {
+			return finish(dp.getEstimated(v));
 		}
 		//
-		if (v._done == 1 && v._upper_bound <= target * inference.estimationFactor) {
-			return v._upper_bound / inference.estimationFactor;
+		if (dp.getDone(v) == DPTable.UPPER_BOUND && dp.getUpperBound(v) <= target * inference.estimationFactor) {
+			stats.vertexPruned(ESTIMATE);
+			return finish(dp.getUpperBound(v) / inference.estimationFactor);
 		}
 		
 		int clusterSize = v.getCluster().getClusterSize();
@@ -214,17 +296,43 @@ public abstract class AbstractComputeMinCostTask<T> {
 		// SIA: base case for singelton clusters.
 		if (clusterSize <= 1 || spm.isSingleSP(v.getCluster().getBitSet())) {
 			
-			v._max_score = 0;
-			v._estimated = 0;
-			v._min_lc = (v._min_rc = null);
-			v._done = 3;
+			dp.setMaxScore(v, 0);
+			dp.setEstimated(v, 0);
+			dp.setResolution(v, null, null, 0);
+			dp.setDone(v, DPTable.DONE);
 			
-			return v._max_score;
+			return finish(dp.getMaxScore(v));
 		}
 
-		containedVertecies = clusters.getContainedClusters(v);
+		resolutions = estimatedResolutions(clusterSize);
+		return nextResolution();
+	}
+	
+	private AbstractComputeMinCostTask<T> startGreedy() {
+		int clusterSize = v.getCluster().getClusterSize();
 
-		boolean canSaveWork = true;
+		// SIA: base case for singelton clusters.
+		if (clusterSize <= 1 || spm.isSingleSP(v.getCluster().getBitSet())) {
+			
+			dp.setMaxScore(v, 0);
+			dp.setEstimated(v, 0);
+			dp.setResolution(v, null, null, 0);
+			dp.setDone(v, DPTable.DONE);
+			
+			return finish(dp.getMaxScore(v));
+		}
+
+		resolutions = estimatedResolutions(clusterSize);
+		return nextResolution();
+	}
+
+	/**
+	 * Finds contained clusters of v (needed for solving sub-problems) 
+	 * and all resolutions of v, not yet weighed
+	 */
+	private Iterable<VertexPair> candidateResolutions(int clusterSize) {
+		containedVertecies = clusters.getContainedClusters(v);
+		stats.vertexExpanded(mode);
 		
 		Iterable<VertexPair> clusterResolutions;
 		if (clusterSize == GlobalMaps.taxonIdentifier.taxonCount()) {
@@ -253,140 +361,329 @@ public abstract class AbstractComputeMinCostTask<T> {
 			}
 			clusterResolutions = containedVertecies.getClusterResolutions();
 		}
+		return clusterResolutions;
+	}
+
+	/**
+	 * Resolutions of v sorted by estimated upper bounds, as used by the
+	 * greedy and estimation passes. They are saved for the next passes. 
+	 */
+	private ArrayList<VertexPair> estimatedResolutions(int clusterSize) {
+		Iterable<VertexPair> clusterResolutions = candidateResolutions(clusterSize);
 		
-		if (v.clusterResolutions != null) clusterResolutions = v.clusterResolutions;
-		else {
-			ArrayList<VertexPair> clusterResolutionArrayList = new ArrayList<VertexPair>();
-			
-			for (VertexPair bi : clusterResolutions){
-				if (clusterSize == GlobalMaps.taxonIdentifier.taxonCount()) bi.weight = defaultWeightForFullClusters();
-				else bi.weight = inference.weightCalculator.getWeight(STB2T(bi), this);
-				estimateUpperBound(bi.cluster1);
-				estimateUpperBound(bi.cluster2);
-				bi.upperbound = bi.cluster1._upper_bound + bi.cluster2._upper_bound + bi.weight;
-				clusterResolutionArrayList.add(bi);
+		ArrayList<VertexPair> savedResolutions = dp.getResolutions(v);
+		if (savedResolutions != null) {
+			return savedResolutions;
+		}
+		ArrayList<VertexPair> clusterResolutionArrayList = weighResolutions(clusterResolutions, clusterSize, mode);
+		
+		for (VertexPair bi : clusterResolutionArrayList){
+			estimateUpperBound(bi.cluster1);
+			estimateUpperBound(bi.cluster2);
+			bi.upperbound = dp.getUpperBound(bi.cluster1) + dp.getUpperBound(bi.cluster2) + bi.weight;
+		}
+		
+		Collections.sort(clusterResolutionArrayList);
+		dp.setResolutions(v, clusterResolutionArrayList);
+		return clusterResolutionArrayList;
+	}
+
+	/**
+	 * Starts solving the next resolution of v. 
+	 * Sequentially, the smaller side is solved first, and its score is used 
+	 * to tighten the target of the bigger side. In parallel, the smaller side
+	 * is forked and both targets are based on upper bounds of the other side,
+	 * which prunes less but gives the same scores.
+	 * @return the first side to solve, or null if the task is finished
+	 */
+	private AbstractComputeMinCostTask<T> nextResolution() {
+		if (nextResolution == resolutions.size()) {
+			return finishResolutions();
+		}
+		VertexPair bi = resolutions.get(nextResolution++);
+		double lbound, rbound;
+		if (mode == EXACT) {
+			// Resolutions are sorted by their upper bound; none of the rest can do better
+			if (bi.upperbound <= dp.getMaxScore(v)) {
+				stats.pairsPruned(EXACT, resolutions.size() - nextResolution + 1);
+				return finishResolutions();
 			}
-			
-			Collections.sort(clusterResolutionArrayList);
-			clusterResolutions = clusterResolutionArrayList;
-			v.clusterResolutions = clusterResolutionArrayList;
+			best = dp.getMaxScore(v);
+			lbound = computeUpperBound(bi.cluster1);
+			rbound = computeUpperBound(bi.cluster2);
+		} else {
+			best = mode == ESTIMATE ? dp.getEstimated(v) : greedyScore;
+			lbound = estimateUpperBound(bi.cluster1);
+			rbound = estimateUpperBound(bi.cluster2);
+		}
+		resolution = bi;
+		stats.pairEvaluated(mode);
+		AbstractComputeMinCostTask<T> smallWork = newMinCostTask(
+				bi.cluster1, containedVertecies, best - bi.weight - rbound, mode);
+		if (inference.isParallel() && 
+				bi.cluster1.getCluster().getClusterSize() >= PARALLEL_CLUSTER_SIZE) {
+			smallWork.fork();
+			forked = smallWork;
+			return newMinCostTask(bi.cluster2, containedVertecies, best - bi.weight - lbound, mode);
+		}
+		solvingSmallSide = true;
+		smallWork.quiet = quiet;
+		return smallWork;
+	}
+
+	/**
+	 * Goes on with the task after a side of the current resolution is solved
+	 * @return the next sub-problem to solve, or null if the task is finished
+	 */
+	private AbstractComputeMinCostTask<T> resume(double sideScore) {
+		if (solvingSmallSide) {
+			solvingSmallSide = false;
+			lscore = sideScore;
+			AbstractComputeMinCostTask<T> bigWork = newMinCostTask(resolution.cluster2, 
+					containedVertecies, best - resolution.weight - lscore, mode);
+			bigWork.quiet = quiet;
+			return bigWork;
+		}
+		double rscore = sideScore;
+		if (forked != null) {
+			lscore = forked.join();
+			forked = null;
 		}
+		VertexPair bi = resolution;
+		resolution = null;
+		Vertex smallV = bi.cluster1;
+		Vertex bigv = bi.cluster2;
 		
-		for (VertexPair bi : clusterResolutions) {
-			Vertex smallV = bi.cluster1;
-			Vertex bigv = bi.cluster2;
+		switch (mode) {
+		case GREEDY:
+			if (lscore + rscore + bi.weight <= greedyScore) {
+				break;
+			}
+			greedyScore = (lscore + rscore + bi.weight);
+			// Kept for the anytime tree; later passes replace it
+			dp.setResolution(v, smallV, bigv, bi.weight);
+			return finishResolutions();
+		case ESTIMATE:
+			canSaveWork = (canSaveWork && dp.getDone(smallV) == DPTable.DONE && dp.getDone(bigv) == DPTable.DONE);
+			if (lscore + rscore + bi.weight <= dp.getEstimated(v)) {
+				break;
+			}
+			dp.setEstimated(v, (lscore + rscore + bi.weight));
+			dp.setResolution(v, smallV, bigv, bi.weight);
+			break;
+		default:
+			if (lscore + rscore + bi.weight <= dp.getMaxScore(v)) {
+				break;
+			}
+			dp.setMaxScore(v, (lscore + rscore + bi.weight));
+			dp.setResolution(v, smallV, bigv, bi.weight);
+		}
+		if (quiet) {
+			inference.checkpointIfDue();
+		}
+		return nextResolution();
+	}
 
-			double lscore = estimateUpperBound(smallV), rscore = estimateUpperBound(bigv);
-			AbstractComputeMinCostTask<T> smallWork = newMinCostTask(
-					smallV, containedVertecies, v._estimated - bi.weight - rscore);
-			lscore = smallWork.estimateMinCost();
-			
-			AbstractComputeMinCostTask<T> bigWork = newMinCostTask(
-					bigv, containedVertecies, v._estimated - bi.weight - lscore);
-			rscore = bigWork.estimateMinCost();
-			
-			canSaveWork = (canSaveWork && smallV._done == 3 && bigv._done == 3);
-			if (lscore + rscore + bi.weight <= v._estimated) {
-				continue;
+	/**
+	 * Finishes the task once no more resolutions need to be solved
+	 * @return null
+	 */
+	private AbstractComputeMinCostTask<T> finishResolutions() {
+		switch (mode) {
+		case GREEDY:
+			return finish(greedyScore);
+		case ESTIMATE:
+			dp.setDone(v, DPTable.ESTIMATED);
+			if (canSaveWork) {
+				dp.setDone(v, DPTable.DONE);
+				dp.setMaxScore(v, dp.getEstimated(v));
 			}
-			v._estimated = (lscore + rscore + bi.weight);
-			v._min_lc = smallV;
-			v._min_rc = bigv;
-			v._c = bi.weight;
+			return finish(dp.getEstimated(v));
+		default:
+			dp.setResolutions(v, null);
+			dp.setDone(v, DPTable.DONE);
+			return finish(dp.getMaxScore(v));
 		}
-		v._done = 2;
-		if (canSaveWork) {
-			v._done = 3;
-			v._max_score = v._estimated;
+	}
+
+	/**
+	 * Solves the root: the greedy pass, then the estimation pass, 
+	 * and then the exact pass
+	 * @return the score of the root
+	 */
+	private double solveAllPasses() {
+		long start = System.nanoTime();
+		double greedyScore;
+		if (inference.passesDone < 1) {
+			greedyScore = newMinCostTask(v, clusters, target, GREEDY).compute();
+			stats.time(GREEDY, System.nanoTime() - start);
+			System.err.println("Greedy score: " + (long) greedyScore / 4);
+			if (inference.keepsAnytimeTrees()) {
+				inference.keepAnytimeTree(v, "greedy", true);
+			}
+			inference.greedyScore = greedyScore;
+			inference.passesDone = 1;
+			if (quiet) {
+				inference.checkpointIfDue();
+			}
+		} else {
+			// Resumed from a checkpoint
+			greedyScore = inference.greedyScore;
+		}
+		stats.setGreedyScore(greedyScore);
+		double estimateScore;
+		if (inference.passesDone < 2) {
+			start = System.nanoTime();
+			AbstractComputeMinCostTask<T> estimate = newMinCostTask(v, clusters, target, ESTIMATE);
+			estimate.quiet = quiet;
+			estimate.estimateUpperBound(v);
+			stats.setUpperBound(dp.getUpperBound(v));
+			inference.estimationFactor = dp.getUpperBound(v) / greedyScore;
+			System.err.println("estimationFactor: " + inference.estimationFactor);
+			estimateScore = estimate.compute();
+			stats.time(ESTIMATE, System.nanoTime() - start);
+			System.err.println("Sub-optimal score: " + (long) estimateScore / 4);
+			if (inference.keepsAnytimeTrees()) {
+				completeResolutions(v);
+				inference.keepAnytimeTree(v, "estimated", true);
+			}
+			inference.passesDone = 2;
+			if (quiet) {
+				inference.checkpointIfDue();
+			}
+		} else {
+			// Resumed from a checkpoint; the root is as it was saved
+			dp.setDone(v, inference.resumedTopState);
+			stats.setUpperBound(dp.getUpperBound(v));
+			estimateScore = dp.getEstimated(v);
+			if (inference.keepsAnytimeTrees()) {
+				completeResolutions(v);
+				inference.keepAnytimeTree(v, "resumed", true);
+			}
 		}
-		return v._estimated;
+		stats.setEstimatedScore(estimateScore);
+		start = System.nanoTime();
+		AbstractComputeMinCostTask<T> exact = newMinCostTask(v, clusters, target, EXACT);
+		exact.quiet = quiet;
+		double score = exact.compute();
+		stats.time(EXACT, System.nanoTime() - start);
+		if (inference.isOutOfTime()) {
+			// The exact pass was cut short; the best tree found is used
+			completeResolutions(v);
+			score = inference.keepAnytimeTree(v, "exact", false);
+			dp.setMaxScore(v, score);
+		}
+		stats.setExactScore(score);
+		return score;
 	}
 	
-	private double greedy(){
-		double result = -1e18;
+	/**
+	 * Solves v exactly using scores of its sub-clusters, which should all
+	 * be solved already. Used by the bottom-up engine (see BottomUpDP), 
+	 * which solves smaller clusters first; nothing is pruned. 
+	 */
+	void solveFromSubClusters() {
 		int clusterSize = v.getCluster().getClusterSize();
 
 		// SIA: base case for singelton clusters.
 		if (clusterSize <= 1 || spm.isSingleSP(v.getCluster().getBitSet())) {
 			
-			v._max_score = 0;
-			v._estimated = 0;
-			v._min_lc = (v._min_rc = null);
-			v._done = 3;
+			dp.setMaxScore(v, 0);
+			
+			dp.setResolution(v, null, null, 0);
+			dp.setDone(v, DPTable.DONE);
 			
-			return v._max_score;
+			return;
 		}
-
-		containedVertecies = clusters.getContainedClusters(v);
 		
-		Iterable<VertexPair> clusterResolutions;
-		if (clusterSize == GlobalMaps.taxonIdentifier.taxonCount()) {
-			clusterResolutions = new ArrayList<VertexPair>();
-			Vertex v1 = null;
-			int smallestSize = 1;
-			while (v1 == null) {
-				Set<Vertex> cs = containedVertecies.getSubClusters(smallestSize);
-				if (cs.size() != 0)
-					v1 = cs.iterator().next();
-				else 
-					smallestSize++;
+		Iterable<VertexPair> clusterResolutions = candidateResolutions(clusterSize);
+		for (VertexPair bi : weighResolutions(clusterResolutions, clusterSize, EXACT)) {
+			stats.pairEvaluated(EXACT);
+			double lscore = dp.getMaxScore(bi.cluster1), rscore = dp.getMaxScore(bi.cluster2);
+			if (lscore + rscore + bi.weight <= dp.getMaxScore(v)) {
+				continue;
 			}
-			for (Vertex v2: containedVertecies.getSubClusters(GlobalMaps.taxonIdentifier.taxonCount()-smallestSize))
-			{
-				if (v1.getCluster().isDisjoint(v2.getCluster())) {
-					VertexPair vp = new VertexPair(v1, v2, v);
-					((ArrayList<VertexPair>) clusterResolutions).add(vp);
-					break;
-				}
+			dp.setMaxScore(v, (lscore + rscore + bi.weight));
+			dp.setResolution(v, bi.cluster1, bi.cluster2, bi.weight);
+		}
+		containedVertecies = null;
+		dp.setDone(v, DPTable.DONE);
+	}
+	
+	/**
+	 * Makes sure that every vertex in the tree given by the current 
+	 * resolutions is resolved. Vertices that are not (e.g., those
+	 * pruned by the estimation pass) are resolved greedily. 
+	 */
+	private void completeResolutions(Vertex root) {
+		Stack<Vertex> vertices = new Stack<Vertex>();
+		vertices.push(root);
+		while (!vertices.isEmpty()) {
+			Vertex pe = vertices.pop();
+			if (pe.getCluster().getClusterSize() <= 1 || spm.isSingleSP(pe.getCluster().getBitSet())) {
+				continue;
 			}
-			
-		} else {
-			if (clusterSize >= GlobalMaps.taxonIdentifier.taxonCount() * inference.getCS()) { //obsolete
-				addComplementaryClusters(clusterSize);
+			if (dp.getLeft(pe) == null) {
+				newMinCostTask(pe, clusters, 0, GREEDY).compute();
 			}
-			clusterResolutions = containedVertecies.getClusterResolutions();
-		}
-		
-		if (v.clusterResolutions != null) clusterResolutions = v.clusterResolutions;
-		else {
-			ArrayList<VertexPair> clusterResolutionArrayList = new ArrayList<VertexPair>();
-			
-			for (VertexPair bi : clusterResolutions){
-				if (clusterSize == GlobalMaps.taxonIdentifier.taxonCount()) bi.weight = defaultWeightForFullClusters();
-				else bi.weight = inference.weightCalculator.getWeight(STB2T(bi), this);
-				estimateUpperBound(bi.cluster1);
-				estimateUpperBound(bi.cluster2);
-				bi.upperbound = bi.cluster1._upper_bound + bi.cluster2._upper_bound + bi.weight;
-				clusterResolutionArrayList.add(bi);
+			if (dp.getLeft(pe) != null) {
+				vertices.push(dp.getLeft(pe));
+				vertices.push(dp.getRight(pe));
 			}
-			
-			Collections.sort(clusterResolutionArrayList);
-			clusterResolutions = clusterResolutionArrayList;
-			v.clusterResolutions = clusterResolutionArrayList;
 		}
-		
+	}
+	
+	/**
+	 * Sets the weight of all given resolutions. Weights are asked from
+	 * the weight calculator all at once, so that it can compute them together.
+	 * Resolutions are pulled from the given iterable as they are added,
+	 * so the returned list is the only copy kept.
+	 * @param pass the pass of the DP asking for weights, for statistics
+	 * @return the resolutions in a list
+	 */
+	private ArrayList<VertexPair> weighResolutions(Iterable<VertexPair> clusterResolutions, int clusterSize,
+			byte pass) {
+		ArrayList<VertexPair> ret = new ArrayList<VertexPair>();
 		for (VertexPair bi : clusterResolutions) {
-			Vertex smallV = bi.cluster1;
-			Vertex bigv = bi.cluster2;
-
-			double lscore = estimateUpperBound(smallV), rscore = estimateUpperBound(bigv);
-			AbstractComputeMinCostTask<T> smallWork = newMinCostTask(
-					smallV, containedVertecies, result - bi.weight - rscore);
-			lscore = smallWork.greedy();
-			
-			AbstractComputeMinCostTask<T> bigWork = newMinCostTask(
-					bigv, containedVertecies, result - bi.weight - lscore);
-			rscore = bigWork.greedy();
-			
-			if (lscore + rscore + bi.weight <= result) {
-				continue;
+			ret.add(bi);
+		}
+		if (clusterSize == GlobalMaps.taxonIdentifier.taxonCount()) {
+			for (VertexPair bi : ret) {
+				bi.weight = defaultWeightForFullClusters();
 			}
-			result = (lscore + rscore + bi.weight);
-			break;
+			return ret;
 		}
-		return result;
+		AbstractWeightCalculator<T> calculator = inference.weightCalculator;
+		List<T> ts = new ArrayList<T>(ret.size());
+		List<VertexPair> unweighed = ret;
+		long[] keys = null;
+		if (calculator.savesWeights()) {
+			// Only partitions without saved weights are built
+			unweighed = new ArrayList<VertexPair>(ret.size());
+			keys = new long[2 * ret.size()];
+			for (VertexPair bi : ret) {
+				fingerprint(bi, probe);
+				long saved = calculator.getSavedWeight(probe);
+				if (saved != WeightCache.MISSING) {
+					bi.weight = saved;
+					continue;
+				}
+				keys[2 * unweighed.size()] = probe[0];
+				keys[2 * unweighed.size() + 1] = probe[1];
+				unweighed.add(bi);
+			}
+		}
+		stats.weights(pass, ret.size(), unweighed.size());
+		for (VertexPair bi : unweighed) {
+			ts.add(STB2T(bi));
+		}
+		long[] weights = calculator.getWeights(ts, keys, this);
+		for (int i = 0; i < weights.length; i++) {
+			unweighed.get(i).weight = weights[i];
+		}
+		return ret;
 	}
-	
+
 	abstract Long defaultWeightForFullClusters();
 
 	protected abstract AbstractComputeMinCostTask<T> newMinCostTask(Vertex v, 
@@ -399,6 +696,13 @@ public abstract class AbstractComputeMinCostTask<T> {
 		return task;
 	}
 	
+	protected AbstractComputeMinCostTask<T> newMinCostTask(Vertex v, 
+			IClusterCollection clusters, double target, byte mode){
+		AbstractComputeMinCostTask<T> task = newMinCostTask(v, clusters, target);
+		task.mode = mode;
+		return task;
+	}
+	
 	abstract protected double adjustWeight(long clusterLevelCost, Vertex smallV,
 			Vertex bigv, Long Wdom);
 
@@ -408,6 +712,14 @@ public abstract class AbstractComputeMinCostTask<T> {
 	
 	abstract protected T STB2T(VertexPair stb);
 
+	/**
+	 * Fills key with the fingerprint of STB2T(vp). Subclasses should
+	 * override this to avoid building the partition.
+	 */
+	void fingerprint(VertexPair vp, long[] key) {
+		inference.weightCalculator.fingerprint(STB2T(vp), key);
+	}
+
 	/***
 	 * Used in the exact version
 	 * @param cluster
@@ -1,5 +1,11 @@
 package phylonet.coalescent;
 
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
@@ -20,6 +26,9 @@ import phylonet.util.BitSet;
  */
 public abstract class AbstractDataCollection <T> {
 
+	private static final int SETX_MAGIC = 0x41535458;
+	private static final int SETX_VERSION = 1;
+
 	protected IClusterCollection clusters;
 
 	protected boolean addToClusters(STITreeCluster c, int size) {
@@ -71,6 +80,115 @@ public abstract class AbstractDataCollection <T> {
     //public abstract void addExtraBipartitionByExtension(AbstractInference<T> inference);
 	
 	public abstract void formSetX(AbstractInference<T> inference);
+
+	/**
+	 * Sets up what formSetX sets up for the weight calculation, but
+	 * takes the set X from a stream written by writeSetX instead of building it.
+	 * @param source the name of the file read, for messages
+	 */
+	public abstract void loadSetX(AbstractInference<T> inference, DataInputStream in, String source)
+			throws IOException;
+
+	/**
+	 * Writes the set X to a binary file. 
+	 * Format (as written by DataOutputStream):
+	 *   -- MAGIC, VERSION
+	 *   -- Number of taxa (n), then the name of each taxon in the order of IDs
+	 *   -- For each cluster size from 1 to n, the number of clusters of that size,
+	 *      then each cluster as (n+63)/64 longs, bit i of word i/64 for taxon i
+	 */
+	void writeSetX(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		try {
+			writeSetX(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes the set X to a stream, in the format of writeSetX(File)
+	 */
+	void writeSetX(DataOutputStream out) throws IOException {
+		TaxonIdentifier ti = GlobalMaps.taxonIdentifier;
+		int n = ti.taxonCount();
+		long[] words = new long[(n + 63) / 64];
+		out.writeInt(SETX_MAGIC);
+		out.writeInt(SETX_VERSION);
+		out.writeInt(n);
+		for (int i = 0; i < n; i++) {
+			out.writeUTF(ti.getTaxonName(i));
+		}
+		for (int size = 1; size <= n; size++) {
+			Set<Vertex> s = clusters.getSubClusters(size);
+			out.writeInt(s.size());
+			for (Vertex v : s) {
+				writeCluster(out, v.getCluster().getBitSet(), words);
+			}
+		}
+	}
+
+	/**
+	 * Writes a cluster as words.length longs, bit i of word i/64 for taxon i
+	 * @param words used as a buffer
+	 */
+	static void writeCluster(DataOutputStream out, BitSet bs, long[] words) throws IOException {
+		Arrays.fill(words, 0);
+		for (int i = bs.nextSetBit(0); i >= 0; i = bs.nextSetBit(i + 1)) {
+			words[i >> 6] |= 1L << i;
+		}
+		for (long w : words) {
+			out.writeLong(w);
+		}
+	}
+
+	/**
+	 * Reads a cluster written by writeCluster
+	 * @param n the number of taxa
+	 * @param words used as a buffer
+	 */
+	static BitSet readCluster(DataInputStream in, int n, long[] words) throws IOException {
+		for (int w = 0; w < words.length; w++) {
+			words[w] = in.readLong();
+		}
+		BitSet bs = new BitSet(n);
+		for (int i = 0; i < n; i++) {
+			if ((words[i >> 6] & (1L << i)) != 0) {
+				bs.set(i);
+			}
+		}
+		return bs;
+	}
+
+	/**
+	 * Adds clusters written by writeSetX to the set X. 
+	 * Taxa of the file should be the same as those of the input (in the same order).
+	 * @param source the name of the file, for error messages
+	 */
+	void readSetX(DataInputStream in, String source) throws IOException {
+		TaxonIdentifier ti = GlobalMaps.taxonIdentifier;
+		int n = ti.taxonCount();
+		if (in.readInt() != SETX_MAGIC || in.readInt() != SETX_VERSION) {
+			throw new RuntimeException(source + " is not a search space written by ASTRAL");
+		}
+		boolean same = in.readInt() == n;
+		for (int i = 0; same && i < n; i++) {
+			same = in.readUTF().equals(ti.getTaxonName(i));
+		}
+		if (!same) {
+			throw new RuntimeException("The search space in " + source 
+					+ " was built for different taxa than the input gene trees");
+		}
+		long[] words = new long[(n + 63) / 64];
+		for (int size = 1; size <= n; size++) {
+			for (int count = in.readInt(); count > 0; count--) {
+				STITreeCluster c = ti.newCluster();
+				c.setCluster(readCluster(in, n, words));
+				addToClusters(c, size);
+			}
+		}
+	}
 	
 	@Override
 	protected Object clone() throws CloneNotSupportedException {
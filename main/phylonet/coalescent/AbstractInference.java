@@ -1,8 +1,16 @@
 package phylonet.coalescent;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -29,6 +37,11 @@ public abstract class AbstractInference<T> {
 	//protected boolean rooted = true;
 	//protected boolean extrarooted = true;
 	protected List<Tree> trees;
+	/**
+	 * The number of copies of each gene tree in trees; all ones unless
+	 * gene trees with the same topology were merged (see DistinctGeneTrees)
+	 */
+	protected int[] treeWeights;
 	protected List<Tree> extraTrees = null;
 	protected List<Tree> toRemoveExtraTrees = null;
 	protected boolean removeExtraTree;
@@ -41,6 +54,14 @@ public abstract class AbstractInference<T> {
 	
 	AbstractDataCollection<T> dataCollection;
 	AbstractWeightCalculator<T> weightCalculator;
+	/**
+	 * The state of the dynamic programming; set up by findTreesByDP
+	 */
+	DPTable dpTable;
+	/**
+	 * Counters of the dynamic programming; set up by findTreesByDP
+	 */
+	DPStatistics dpStatistics;
 //	private int addExtra;
 //	public boolean outputCompleted;
 //	boolean searchSpace;
@@ -50,11 +71,48 @@ public abstract class AbstractInference<T> {
 	
 	double estimationFactor = 0;
 	
+	/**
+	 * When the DP has to stop, as given by System.nanoTime(); 
+	 * zero for no time budget
+	 */
+	private long deadline = 0;
+	private volatile boolean outOfTime = false;
+	/**
+	 * The best tree found before the exact pass finished, as clusters 
+	 * of species, and its score
+	 */
+	private List<STITreeCluster> bestClusters = null;
+	private double bestScore = Double.NEGATIVE_INFINITY;
+	private boolean anytimeFileStarted = false;
+	
+	/**
+	 * Where progress of the DP is saved, and the number of the run; 
+	 * the checkpoint is null if progress is not saved
+	 */
+	private Checkpoint checkpoint = null;
+	private int run;
+	private boolean resumed = false;
+	private long lastCheckpoint;
+	/**
+	 * Passes of the DP finished at the root (0 to 2, for the greedy and 
+	 * estimation passes), and the greedy score; kept for checkpoints
+	 */
+	int passesDone = 0;
+	double greedyScore;
+	/**
+	 * When resumed, the DP state of the top vertex in the checkpoint
+	 */
+	byte resumedTopState = DPTable.NOT_DONE;
+	
 	public AbstractInference(Options options, List<Tree> trees,
 			List<Tree> extraTrees, List<Tree> toRemoveExtraTrees) {
 		super();
 		this.options = options;
 		this.trees = trees;
+		if (trees != null) {
+			this.treeWeights = new int[trees.size()];
+			Arrays.fill(this.treeWeights, 1);
+		}
 		this.extraTrees = extraTrees;
 		this.removeExtraTree = options.isRemoveExtraTree();
 		this.toRemoveExtraTrees = toRemoveExtraTrees;
@@ -71,6 +129,65 @@ public abstract class AbstractInference<T> {
 		return options.isRooted();
 	}
 	
+	/**
+	 * Should trees found by the passes of the DP before the exact pass be kept?
+	 * They are needed for the anytime output and for stopping at the time budget.
+	 */
+	boolean keepsAnytimeTrees() {
+		return options.getAnytimeFile() != null || options.getTimeBudget() > 0;
+	}
+
+	/**
+	 * Has the time budget of the DP run out?
+	 */
+	boolean isOutOfTime() {
+		if (outOfTime) {
+			return true;
+		}
+		if (deadline == 0 || System.nanoTime() < deadline) {
+			return false;
+		}
+		outOfTime = true;
+		return true;
+	}
+
+	/**
+	 * Saves progress of the DP of this inference to the checkpoint, and
+	 * resumes it from there if the checkpoint has progress for this run
+	 * @param run the number of this run (see Checkpoint)
+	 */
+	void setCheckpoint(Checkpoint checkpoint, int run) {
+		this.checkpoint = checkpoint;
+		this.run = run;
+	}
+
+	/**
+	 * Saves the state of the DP if the checkpoint interval has passed since
+	 * the last time. Should be called only when no other DP task is running.
+	 * Nothing is saved once the time budget has run out, since vertices
+	 * cut short by it hold partial scores.
+	 */
+	void checkpointIfDue() {
+		if (checkpoint == null || isOutOfTime()
+				|| System.nanoTime() - lastCheckpoint < checkpoint.getInterval()) {
+			return;
+		}
+		try {
+			checkpoint.writeDP(this, run);
+			System.err.println("Progress of the dynamic programming is saved");
+		} catch (IOException e) {
+			System.err.println("Could not save progress of the dynamic programming: " + e.getMessage());
+		}
+		lastCheckpoint = System.nanoTime();
+	}
+
+	/**
+	 * Should the dynamic programming use more than one thread?
+	 */
+	public boolean isParallel() {
+		return options.getThreads() > 1;
+	}
+	
 	protected Collapse.CollapseDescriptor doCollapse(List<Tree> trees) {
 		Collapse.CollapseDescriptor cd = Collapse.collapse(trees);
 		return cd;
@@ -100,11 +217,14 @@ public abstract class AbstractInference<T> {
 		if ((trees == null) || (trees.size() == 0)) {
 			throw new IllegalArgumentException("empty or null list of trees");
 		}
+        int t = 0;
         for (Tree tr : trees) {
             String[] leaves = tr.getLeaves();
+            int w = treeWeights[t++];
             for (int i = 0; i < leaves.length; i++) {
                 GlobalMaps.taxonIdentifier.taxonId(leaves[i]);
-                taxonOccupancy.put(leaves[i], Utils.increment(taxonOccupancy.get(leaves[i])));
+                Integer count = taxonOccupancy.get(leaves[i]);
+                taxonOccupancy.put(leaves[i], count == null ? w : count + w);
             }
         }
         
@@ -152,15 +272,45 @@ public abstract class AbstractInference<T> {
 		}
 */
 		Vertex all = (Vertex) clusters.getTopVertex();
+		dpTable = new DPTable(options.getResolutionCacheMB() * 1024L * 1024L);
+		dpTable.registerAll(clusters);
+		dpStatistics = new DPStatistics();
+		if (resumed) {
+			try {
+				checkpoint.readDP(this, clusters);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		lastCheckpoint = System.nanoTime();
+		if (options.getTimeBudget() > 0) {
+			deadline = System.nanoTime() + (long) (options.getTimeBudget() * 1e9);
+		}
 
 		System.err.println("Size of largest cluster: " +all.getCluster().getClusterSize());
 
 		try {
 			//vertexStack.push(all);
-			AbstractComputeMinCostTask<T> allTask = newComputeMinCostTask(this,all,clusters);
-			//ForkJoinPool pool = new ForkJoinPool(1);
-			allTask.compute();
-			double v = all._max_score;
+			if (isParallel()) {
+				System.err.println("Dynamic programming will use " + options.getThreads() + " threads");
+			}
+			if (options.isBottomUpDP()) {
+				System.err.println("Using the bottom-up dynamic programming");
+				new BottomUpDP<T>(this, clusters).solve();
+			} else if (isParallel()) {
+				AbstractComputeMinCostTask<T> allTask = newComputeMinCostTask(this,all,clusters);
+				allTask.quiet = true;
+				GlobalMaps.pool(options.getThreads()).invoke(allTask);
+			} else {
+				AbstractComputeMinCostTask<T> allTask = newComputeMinCostTask(this,all,clusters);
+				allTask.quiet = true;
+				allTask.compute();
+			}
+			if (outOfTime) {
+				System.err.println("The time budget ran out before the exact search finished; "
+						+ "the best tree found so far is used.");
+			}
+			double v = dpTable.getMaxScore(all);
 			if (v == Integer.MIN_VALUE) {
 				throw new CannotResolveException(all.getCluster().toString());
 			}
@@ -178,52 +328,22 @@ public abstract class AbstractInference<T> {
 		//System.out.println("domination calcs:" + counter.cnt);
 		
 		System.err.println("Total Number of elements weighted: "+ weightCalculator.getCalculatedWeightCount());
-
-		List<STITreeCluster> minClusters = new LinkedList<STITreeCluster>();
-		List<Double> coals = new LinkedList<Double>();
-		Stack<Vertex> minVertices = new Stack<Vertex>();
-		if (all._min_rc != null) {
-			minVertices.push(all._min_rc);
+		if (!"".equals(weightCalculator.getCacheStatistics())) {
+			System.err.println("Weight " + weightCalculator.getCacheStatistics());
 		}
-		if (all._min_lc != null) {
-			minVertices.push(all._min_lc);
+		System.err.println(dpTable.resolutionStatistics());
+		if (options.getDPStatisticsFile() != null) {
+			writeDPStatistics(options.getDPStatisticsFile());
 		}
-		if (all._subcl != null) {
-			for (Vertex v : all._subcl) {
-				minVertices.push(v);
-			}
-		}		
-		SpeciesMapper spm = GlobalMaps.taxonNameMap.getSpeciesIdMapper();
-		while (!minVertices.isEmpty()) {
-			Vertex pe = (Vertex) minVertices.pop();
-			STITreeCluster stCluster = spm.
-					getSTClusterForGeneCluster(pe.getCluster());
-			//System.out.println(pe._min_rc);
-			//System.out.println(pe._min_lc);
-			minClusters.add(stCluster);
-			//System.out.println(pe.getCluster().getClusterSize()+"\t"+pe._max_score);
-			// int k = sigmaNs/(stTaxa.length-1);
 
-			if ( !GlobalMaps.taxonNameMap.getSpeciesIdMapper().isSingleSP(pe.getCluster().getBitSet()) && (pe._min_lc == null || pe._min_rc == null))
-				System.err.println("hmm; this shouldn't have happened: "+ pe);
-			
-			if (pe._min_rc != null) {
-				minVertices.push(pe._min_rc);
-			}
-			if (pe._min_lc != null) {
-				minVertices.push(pe._min_lc);
-			}
-			if (pe._min_lc != null && pe._min_rc != null) {
-				coals.add(pe._c);
-			} else {
-				coals.add(0D);
-			}
-			if (pe._subcl != null) {
-				for (Vertex v : pe._subcl) {
-					minVertices.push(v);
-				}
-			}
+		List<STITreeCluster> minClusters;
+		if (outOfTime) {
+			minClusters = bestClusters;
+		} else {
+			minClusters = new LinkedList<STITreeCluster>();
+			collectClusters(all, minClusters);
 		}
+		SpeciesMapper spm = GlobalMaps.taxonNameMap.getSpeciesIdMapper();
 		Solution sol = new Solution();
 		if ((minClusters == null) || (minClusters.isEmpty())) {
 			System.err.println("WARN: empty minClusters set.");
@@ -271,6 +391,84 @@ public abstract class AbstractInference<T> {
 		return (List<Solution>) (List<Solution>) solutions;
 	}
 	
+	/**
+	 * Adds the clusters (of species) of the tree given by the current 
+	 * resolutions in the DP table, except for the root
+	 * @return the score of the tree, i.e., the sum of weights of its resolutions
+	 */
+	private double collectClusters(Vertex all, List<STITreeCluster> minClusters) {
+		double score = dpTable.getWeight(all);
+		Stack<Vertex> minVertices = new Stack<Vertex>();
+		if (dpTable.getRight(all) != null) {
+			minVertices.push(dpTable.getRight(all));
+		}
+		if (dpTable.getLeft(all) != null) {
+			minVertices.push(dpTable.getLeft(all));
+		}
+		SpeciesMapper spm = GlobalMaps.taxonNameMap.getSpeciesIdMapper();
+		while (!minVertices.isEmpty()) {
+			Vertex pe = (Vertex) minVertices.pop();
+			STITreeCluster stCluster = spm.
+					getSTClusterForGeneCluster(pe.getCluster());
+			//System.out.println(pe._min_rc);
+			//System.out.println(pe._min_lc);
+			minClusters.add(stCluster);
+			//System.out.println(pe.getCluster().getClusterSize()+"\t"+pe._max_score);
+			// int k = sigmaNs/(stTaxa.length-1);
+
+			Vertex lc = dpTable.getLeft(pe), rc = dpTable.getRight(pe);
+			if ( !GlobalMaps.taxonNameMap.getSpeciesIdMapper().isSingleSP(pe.getCluster().getBitSet()) && (lc == null || rc == null))
+				System.err.println("hmm; this shouldn't have happened: "+ pe);
+			
+			if (rc != null) {
+				minVertices.push(rc);
+			}
+			if (lc != null) {
+				minVertices.push(lc);
+			}
+			if (lc != null && rc != null) {
+				score += dpTable.getWeight(pe);
+			}
+		}
+		return score;
+	}
+
+	/**
+	 * Keeps the tree given by the current resolutions in the DP table 
+	 * if it is the best tree found so far. Every vertex of the tree 
+	 * should be resolved. 
+	 * @param stage the pass that found the tree, for messages
+	 * @param write whether the tree should be added to the anytime file
+	 * @return the score of the best tree found so far
+	 */
+	synchronized double keepAnytimeTree(Vertex all, String stage, boolean write) {
+		List<STITreeCluster> minClusters = new LinkedList<STITreeCluster>();
+		double score = collectClusters(all, minClusters);
+		if (score > bestScore) {
+			bestScore = score;
+			bestClusters = minClusters;
+		}
+		if (write && options.getAnytimeFile() != null) {
+			Tree tree = Utils.buildTreeFromClusters(minClusters, 
+					GlobalMaps.taxonNameMap.getSpeciesIdMapper().getSTTaxonIdentifier(), false);
+			try {
+				// The file is started over by the first tree of each run
+				Writer out = new FileWriter(options.getAnytimeFile(), anytimeFileStarted);
+				try {
+					out.write(tree.toNewick() + "\n");
+				} finally {
+					out.close();
+				}
+				anytimeFileStarted = true;
+				System.err.println("The " + stage + " tree is written to " + options.getAnytimeFile());
+			} catch (IOException e) {
+				System.err.println("Could not write the " + stage + " tree to "
+						+ options.getAnytimeFile() + ": " + e.getMessage());
+			}
+		}
+		return bestScore;
+	}
+
 	/**
 	 * Sets up data structures before starting DP
 	 */
@@ -292,21 +490,53 @@ public abstract class AbstractInference<T> {
 
 		dataCollection = newCounter(newClusterCollection());
 		weightCalculator = newWeightCalculator();
+		weightCalculator.setCacheLimit(options.getWeightCacheMB());
 
-		/**
-		 * Fors the set X by adding from gene trees and
-		 * by adding using ASTRAL-II hueristics
+		try {
+			resumed = checkpoint != null && checkpoint.hasDP(run);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		/*
+		 * A saved X already has the clusters of -x, -e and -f, as it is
+		 * saved after they are added or removed; they are not applied again.
 		 */
-		dataCollection.formSetX(this);
+		boolean loaded = resumed || options.getLoadSearchSpaceFile() != null;
+		if (loaded) {
+			try {
+				if (resumed) {
+					checkpoint.readSearchSpace(this, dataCollection);
+					checkpoint.restoreRandom();
+				} else {
+					DataInputStream in = new DataInputStream(new BufferedInputStream(
+							new FileInputStream(options.getLoadSearchSpaceFile()), 1 << 16));
+					try {
+						dataCollection.loadSetX(this, in, options.getLoadSearchSpaceFile());
+					} finally {
+						in.close();
+					}
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			System.err.println("Number of clusters read: " 
+					+ this.dataCollection.clusters.getClusterCount());
+		} else {
+			/**
+			 * Fors the set X by adding from gene trees and
+			 * by adding using ASTRAL-II hueristics
+			 */
+			dataCollection.formSetX(this);
+		}
 
 		
-		if (options.isExactSolution()) {
+		if (!loaded && options.isExactSolution()) {
 	          System.err.println("calculating all possible bipartitions ...");
 		    dataCollection.addAllPossibleSubClusters(this.dataCollection.clusters.getTopVertex().getCluster());
 		}
 
 	      
-		if (extraTrees != null && extraTrees.size() > 0 && options.getAddExtra() != 3) {		
+		if (!loaded && extraTrees != null && extraTrees.size() > 0 && options.getAddExtra() != 3) {		
 	        System.err.println("calculating extra bipartitions from extra input trees ...");
 			dataCollection.addExtraBipartitionsByInput(extraTrees,options.isExtrarooted());
 			int s = this.dataCollection.clusters.getClusterCount();
@@ -317,7 +547,7 @@ public abstract class AbstractInference<T> {
 					+ s);
 		}
 		
-		if (toRemoveExtraTrees != null && toRemoveExtraTrees.size() > 0 && this.removeExtraTree) {		
+		if (!loaded && toRemoveExtraTrees != null && toRemoveExtraTrees.size() > 0 && this.removeExtraTree) {		
 	        System.err.println("Removing extra bipartitions from extra input trees ...");
 			dataCollection.removeExtraBipartitionsByInput(toRemoveExtraTrees,true);
 			int s = this.dataCollection.clusters.getClusterCount();
@@ -336,6 +566,23 @@ public abstract class AbstractInference<T> {
 			}
 		}
 
+		if (options.getSaveSearchSpaceFile() != null) {
+			try {
+				dataCollection.writeSetX(new File(options.getSaveSearchSpaceFile()));
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			System.err.println("The set of clusters (X) is saved to " + options.getSaveSearchSpaceFile());
+		}
+		if (checkpoint != null && !resumed) {
+			try {
+				checkpoint.writeSearchSpace(dataCollection);
+				checkpoint.searchSpaceDone();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
 		//counter.addExtraBipartitionsByHeuristics(clusters);
 
 		System.err.println("partitions formed in "
@@ -417,4 +664,23 @@ public abstract class AbstractInference<T> {
 	}
 	
 
+
+	/**
+	 * Writes counters of the dynamic programming as JSON. Failing to write
+	 * them is reported but does not stop the run.
+	 */
+	private void writeDPStatistics(String fileName) {
+		try {
+			Writer out = new FileWriter(fileName);
+			try {
+				out.write(dpStatistics.toJSON());
+			} finally {
+				out.close();
+			}
+			System.err.println("Statistics of the dynamic programming written to " + fileName);
+		} catch (IOException e) {
+			System.err.println("Could not write statistics of the dynamic programming to "
+					+ fileName + ": " + e.getMessage());
+		}
+	}
 }
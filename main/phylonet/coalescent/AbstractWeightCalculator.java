@@ -1,76 +1,258 @@
 package phylonet.coalescent;
 
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import phylonet.tree.model.Tree;
 
 public abstract class AbstractWeightCalculator<T> implements Cloneable {
-	
+
 	private static final boolean TESTRUN = false;
-	private int callcounter = 0;
-	protected HashMap<T, Long> weights;
+	private AtomicInteger callcounter = new AtomicInteger(0);
+	/**
+	 * Weights calculated and saved; unlike the size of weights,
+	 * it keeps counting when a bounded cache evicts
+	 */
+	private AtomicInteger calculatedcounter = new AtomicInteger(0);
+	/**
+	 * Saved weights, keyed by fingerprints of partitions (see fingerprint())
+	 */
+	protected WeightCache weights;
 	boolean save;
+	/**
+	 * Upper bound on the memory used by saved weights in MB; zero for no bound
+	 */
+	private int cacheLimitMB = 0;
 	long lastTime;
 
 	public AbstractWeightCalculator(boolean save) {
 		this.save = save;
 		this.lastTime = System.currentTimeMillis();
 	}
-	
+
 	public void initializeWeightContainer(int size) {
-		weights = new HashMap<T, Long>(size);
+		weights = new WeightCache(save ? size : 0, cacheLimitMB * 1024L * 1024L);
+	}
+
+	/**
+	 * Bounds the memory used by saved weights. A positive bound turns on
+	 * saving weights even for calculators that do not save by default;
+	 * when the bound is reached, least useful weights are evicted and
+	 * get recomputed if needed again.
+	 * Should be called before initializeWeightContainer.
+	 * @param mb the bound in MB; zero for no bound
+	 */
+	public void setCacheLimit(int mb) {
+		this.cacheLimitMB = mb;
+		if (mb > 0) {
+			this.save = true;
+		}
+	}
+
+	/**
+	 * @return hit, miss, and eviction counts of saved weights;
+	 * 	empty if weights are not saved.
+	 */
+	public String getCacheStatistics() {
+		return (save && weights != null) ? weights.statistics() : "";
 	}
-	
+
 	public int getCalculatedWeightCount() {
-		//return this.callcounter;	
+		//return this.callcounter;
 		if (!save)
-			return this.callcounter;
-		else 
-			return weights.size();
+			return this.callcounter.get();
+		else
+			return this.calculatedcounter.get();
 	}
-	
+
 	public Long getCalculatedWeight(T t) {
-		return weights.get(t);
+		long[] key = new long[2];
+		fingerprint(t, key);
+		long weight = weights.get(key[0], key[1]);
+		return weight == WeightCache.MISSING ? null : weight;
+	}
+
+	protected void putCalculatedWeight(T t, long weight) {
+		long[] key = new long[2];
+		fingerprint(t, key);
+		weights.put(key[0], key[1], weight);
+		this.calculatedcounter.incrementAndGet();
+	}
+
+	/**
+	 * @return true if calculated weights are saved for later lookups
+	 */
+	public boolean savesWeights() {
+		return save && !TESTRUN;
 	}
-	
-		
+
+	/**
+	 * Looks up a saved weight without building the partition it belongs to.
+	 * @param key the fingerprint of the partition (see fingerprint())
+	 * @return the saved weight, or WeightCache.MISSING if there is none
+	 */
+	long getSavedWeight(long[] key) {
+		if (!savesWeights()) {
+			return WeightCache.MISSING;
+		}
+		return weights.get(key[0], key[1]);
+	}
+
 	public Long getWeight(T t, AbstractComputeMinCostTask<T> minCostTask) {
-		this.callcounter ++;
-		Long weight = getCalculatedWeight(t);
-		if (weight == null) {
-			//ICalculateWeightTask<T> weigthWork = getWeightCalculateTask(t);
-			//prepareWeightTask(weigthWork, minCostTask);
-			// MP_VERSION: smallWork.fork();
-			weight = TESTRUN ? 0 : calculateWeight(t, minCostTask);
-			int count;
-			if (save && !TESTRUN ) {
-				weights.put(t, weight);
-				count = weights.size();
-			} else {
-				count = this.callcounter;
+		return getWeight(t, null, minCostTask);
+	}
+
+	/**
+	 * @param key the fingerprint of t, if the caller has already looked it up
+	 * 	using getSavedWeight and found nothing; null otherwise
+	 */
+	Long getWeight(T t, long[] key, AbstractComputeMinCostTask<T> minCostTask) {
+		int calls = this.callcounter.incrementAndGet();
+		if (savesWeights() && key == null) {
+			key = new long[2];
+			fingerprint(t, key);
+			long saved = weights.get(key[0], key[1]);
+			if (saved != WeightCache.MISSING) {
+				return saved;
 			}
-			if (count % 100000 == 0) {
-				System.err.println("Calculated "+ count +" weights; time (seconds): " + (System.currentTimeMillis() - lastTime)/1000);
-				lastTime = System.currentTimeMillis();
+		}
+		//ICalculateWeightTask<T> weigthWork = getWeightCalculateTask(t);
+		//prepareWeightTask(weigthWork, minCostTask);
+		// MP_VERSION: smallWork.fork();
+		Long weight;
+		if (TESTRUN) {
+			weight = 0L;
+		} else if (isThreadSafe()) {
+			weight = calculateWeight(t, minCostTask);
+		} else {
+			synchronized (this) {
+				weight = calculateWeight(t, minCostTask);
 			}
-/*			if (weights.size() == 75318) {
-				System.err.println("here");
-			}*/
+		}
+		if (savesWeights()) {
+			weights.put(key[0], key[1], weight, weightCost(t));
+			reportProgress(this.calculatedcounter.incrementAndGet(), 1);
 		} else {
-			//System.err.println("Found " + t );
+			reportProgress(calls, 1);
 		}
 		return weight;
 	}
-	
+
+	public long[] getWeights(List<T> ts, AbstractComputeMinCostTask<T> minCostTask) {
+		return getWeights(ts, null, minCostTask);
+	}
+
+	/**
+	 * Same as calling getWeight for each element of ts, but weights
+	 * that are not saved are computed together using calculateWeights.
+	 * @param keys fingerprints of ts (two longs each), if the caller has already
+	 * 	looked them up using getSavedWeight and found nothing; null otherwise
+	 * @return weights in the order of ts
+	 */
+	long[] getWeights(List<T> ts, long[] keys, AbstractComputeMinCostTask<T> minCostTask) {
+		int calls = this.callcounter.addAndGet(ts.size());
+		long[] ret = new long[ts.size()];
+		List<T> missing = ts;
+		int[] missingIndex = null;
+		if (savesWeights() && keys == null) {
+			keys = new long[2 * ts.size()];
+			long[] key = new long[2];
+			missing = new ArrayList<T>(ts.size());
+			missingIndex = new int[ts.size()];
+			for (int i = 0; i < ts.size(); i++) {
+				fingerprint(ts.get(i), key);
+				long saved = weights.get(key[0], key[1]);
+				if (saved != WeightCache.MISSING) {
+					ret[i] = saved;
+					continue;
+				}
+				keys[2 * i] = key[0];
+				keys[2 * i + 1] = key[1];
+				missingIndex[missing.size()] = i;
+				missing.add(ts.get(i));
+			}
+			if (missing.isEmpty()) {
+				return ret;
+			}
+		}
+		long[] calculated = new long[missing.size()];
+		if (!TESTRUN) {
+			if (isThreadSafe()) {
+				calculateWeights(missing, calculated, minCostTask);
+			} else {
+				synchronized (this) {
+					calculateWeights(missing, calculated, minCostTask);
+				}
+			}
+		}
+		for (int j = 0; j < missing.size(); j++) {
+			int i = missingIndex == null ? j : missingIndex[j];
+			ret[i] = calculated[j];
+			if (savesWeights()) {
+				weights.put(keys[2 * i], keys[2 * i + 1], calculated[j], weightCost(missing.get(j)));
+			}
+		}
+		if (savesWeights()) {
+			reportProgress(this.calculatedcounter.addAndGet(missing.size()), missing.size());
+		} else {
+			reportProgress(calls, ts.size());
+		}
+		return ret;
+	}
+
+	/**
+	 * Prints progress whenever count passes a multiple of 100000
+	 * @param added how much count has just grown
+	 */
+	private void reportProgress(int count, int added) {
+		if (count / 100000 != (count - added) / 100000) {
+			System.err.println("Calculated "+ count +" weights; time (seconds): " + (System.currentTimeMillis() - lastTime)/1000
+					+ (save ? "; " + weights.statistics() : ""));
+			lastTime = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Fills key with a 128 bit fingerprint of the partition t.
+	 * Partitions that are equal should have the same fingerprint.
+	 */
+	abstract void fingerprint(T t, long[] key);
+
+	/**
+	 * How expensive it is to recompute the weight of t, between 1 and
+	 * WeightCache.MAX_COST. A bounded cache keeps costly weights longer.
+	 */
+	int weightCost(T t) {
+		return 1;
+	}
+
 	abstract Long calculateWeight(T t, AbstractComputeMinCostTask<T> minCostTask);
-	
+
+	/**
+	 * @return true if calculateWeight can be called by several threads at once.
+	 * 	Otherwise, calls are serialized, as most algorithms use shared scratch space.
+	 */
+	boolean isThreadSafe() {
+		return false;
+	}
+
+	/**
+	 * Computes weights of all of ts into weights. Calculators that can
+	 * weigh several partitions faster than one at a time should override this.
+	 */
+	void calculateWeights(List<T> ts, long[] weights, AbstractComputeMinCostTask<T> minCostTask) {
+		for (int i = 0; i < ts.size(); i++) {
+			weights[i] = calculateWeight(ts.get(i), minCostTask);
+		}
+	}
+
 	public abstract void preCalculateWeights(List<Tree> trees, List<Tree> extraTrees);
-	
+
 		@Override
 	protected Object clone() throws CloneNotSupportedException {
 		// TODO Auto-generated method stub
 		return super.clone();
 	}
-	
-}
\ No newline at end of file
+
+}
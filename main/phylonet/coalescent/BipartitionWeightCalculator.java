@@ -14,10 +14,10 @@ class BipartitionWeightCalculator extends AbstractWeightCalculator<Tripartition>
 
 	WQInference inference;
 	private WQDataCollection dataCollection;
-	private Integer[] geneTreesAsInts;
+	private EncodedGeneTrees geneTreesAsInts;
 
 	public BipartitionWeightCalculator(AbstractInference<Tripartition> inference,
-			Integer[] geneAsInts) {
+			EncodedGeneTrees geneAsInts) {
 		super(false);
 		this.dataCollection = (WQDataCollection) inference.dataCollection;
 		this.inference = (WQInference) inference;
@@ -131,6 +131,11 @@ class BipartitionWeightCalculator extends AbstractWeightCalculator<Tripartition>
 		return null;
 	}
 
+	@Override
+	void fingerprint(Tripartition t, long[] key) {
+		t.fingerprint(key);
+	}
+
 	public Results getWeight(Quadrapartition [] quad ) {
 		long [] fi = {0l,0l,0l};
 		long mi = 0l;
@@ -142,12 +147,15 @@ class BipartitionWeightCalculator extends AbstractWeightCalculator<Tripartition>
 		
 		//Quadrapartition []  quad = new Quadrapartition [] {quadm, new Quadrapartition(quadm.cluster1, quadm.cluster3, quadm.cluster2, quadm.cluster4), new Quadrapartition(quadm.cluster1, quadm.cluster4, quadm.cluster2, quadm.cluster3)};
 		Iterator<STITreeCluster> tit = dataCollection.treeAllClusters.iterator();
+		int t = 0, w = 0;
 		Deque<Intersects> [] stack = new Deque [] {new ArrayDeque<Intersects>(), new ArrayDeque<Intersects>(), new ArrayDeque<Intersects>()};
 
-		for (Integer gtb: geneTreesAsInts){
+		for (int g = 0, g_end = geneTreesAsInts.length(); g < g_end; g++){
+			int gtb = geneTreesAsInts.get(g);
 			//n++;
 			if (newTree) {
 				STITreeCluster all = tit.next();
+				w = dataCollection.treeWeights[t++];
 				for (int i=0; i<3; i++){
 					allsides[i] = new Intersects(
 						quad[i].cluster1.getBitSet().intersectionSize(all.getBitSet()),
@@ -160,13 +168,13 @@ class BipartitionWeightCalculator extends AbstractWeightCalculator<Tripartition>
 				mi = allsides[0].maxPossible();
 				
 				if ( mi != 0) {
-					effectiven++;
+					effectiven += w;
 				} else {
 					cruise = true;
 				}
 				//sum +=  F(allsides.s0, allsides.s1, allsides.s2, allsides.s3);
 			}
-			if (gtb == Integer.MIN_VALUE) {
+			if (gtb == EncodedGeneTrees.DELIMITER) {
 				if (!cruise) {
 					//long fiall = fi[0] + fi[1] + fi[2];
 					//if (fiall != 0)
@@ -175,7 +183,7 @@ class BipartitionWeightCalculator extends AbstractWeightCalculator<Tripartition>
 						double efffreq = (fi[i]+0.0)/(2.0*mi);
 						/*if (efffreq != 1 && efffreq != 0)
 							System.err.println(efffreq);*/
-						weight[i] += efffreq;
+						weight[i] += efffreq * w;
 						//tf += efffreq;
 					}
 					//if (tf < .99) {
@@ -0,0 +1,102 @@
+package phylonet.coalescent;
+
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import phylonet.tree.model.sti.STITreeCluster.Vertex;
+
+/**
+ * The bottom-up engine of the dynamic programming. Instead of starting
+ * from the root and solving sub-problems as needed (see 
+ * AbstractComputeMinCostTask), all clusters of size k are solved before
+ * clusters of size k+1, and each size is solved in parallel. 
+ *
+ * Nothing is pruned, so every cluster of the search space is solved. 
+ * This does more work than the top-down engine when bounds prune well, 
+ * but clusters of one size are independent, which gives better parallel 
+ * efficiency when they do not (e.g., many gene trees and low conflict). 
+ * Scores are the same as the top-down engine; among equally good trees, 
+ * the one picked can differ. 
+ *
+ * @author smirarab
+ *
+ * @param <T>
+ */
+final class BottomUpDP<T> {
+
+	private final AbstractInference<T> inference;
+	private final IClusterCollection clusters;
+
+	BottomUpDP(AbstractInference<T> inference, IClusterCollection clusters) {
+		this.inference = inference;
+		this.clusters = clusters;
+	}
+
+	/**
+	 * Solves all clusters and then the root
+	 * @return the score of the root
+	 */
+	double solve() {
+		Vertex all = clusters.getTopVertex();
+		int taxa = all.getCluster().getClusterSize();
+		ForkJoinPool pool = inference.isParallel() ? 
+				GlobalMaps.pool(inference.options.getThreads()) : null;
+		long start = System.nanoTime();
+		for (int size = 1; size < taxa; size++) {
+			Set<Vertex> level = clusters.getSubClusters(size);
+			if (level == null || level.isEmpty()) {
+				continue;
+			}
+			Vertex[] vertices = level.toArray(new Vertex[level.size()]);
+			if (pool != null) {
+				pool.invoke(new Level(vertices, 0, vertices.length));
+			} else {
+				for (Vertex v : vertices) {
+					solve(v);
+				}
+			}
+			inference.checkpointIfDue();
+		}
+		solve(all);
+		double score = inference.dpTable.getMaxScore(all);
+		inference.dpStatistics.time(AbstractComputeMinCostTask.EXACT, System.nanoTime() - start);
+		inference.dpStatistics.setExactScore(score);
+		return score;
+	}
+
+	private void solve(Vertex v) {
+		// Clusters solved before a checkpoint are not solved again
+		if (inference.dpTable.getDone(v) == DPTable.DONE) {
+			return;
+		}
+		inference.newComputeMinCostTask(inference, v, clusters).solveFromSubClusters();
+	}
+
+	/**
+	 * Solves a range of clusters of one size, splitting it among threads
+	 */
+	private final class Level extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Vertex[] vertices;
+		private final int from, to;
+
+		Level(Vertex[] vertices, int from, int to) {
+			this.vertices = vertices;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				solve(vertices[from]);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new Level(vertices, from, mid), new Level(vertices, mid, to));
+		}
+	}
+}
@@ -0,0 +1,466 @@
+package phylonet.coalescent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import phylonet.tree.io.NewickReader;
+import phylonet.tree.io.ParseException;
+import phylonet.tree.model.Tree;
+import phylonet.tree.model.sti.STITreeCluster;
+import phylonet.tree.model.sti.STITreeCluster.Vertex;
+import phylonet.util.BitSet;
+
+/**
+ * Saves progress of a run to a directory so that an interrupted run
+ * can be resumed (with the same input and options) without redoing
+ * finished work. The directory keeps:
+ *   -- replicates: the output line and tree of each finished bootstrap
+ *      replicate, and the random number generator after the last one
+ *   -- searchspace: the set X of the current run (see writeSetX), after the header
+ *   -- dp: the state of the dynamic programming of the current run, i.e.,
+ *      the DP table of every registered vertex (with saved resolutions),
+ *      saved weights, finished passes, and the random number generator 
+ *      after X was built
+ *
+ * Runs are numbered in the order they are done: bootstrap replicates
+ * from 0, and then the main analysis. The dp file is written at most
+ * once per interval, at points where no other DP task is running (see
+ * AbstractInference.checkpointIfDue), and is removed when its run finishes.
+ * Files are written to a temporary file first and then renamed, so an
+ * interruption while writing leaves the previous checkpoint intact.
+ * All files record the length and checksum of the main input file;
+ * files written for another input are not used.
+ *
+ * @author smirarab
+ *
+ */
+final class Checkpoint {
+
+	private static final int MAGIC = 0x41535443;
+	private static final int VERSION = 2;
+
+	private final File directory;
+	private final long interval;
+	private final boolean resume;
+	private final long inputLength;
+	private final long inputChecksum;
+	/**
+	 * The random number generator after X of the current run was built
+	 */
+	private byte[] randomAfterSetX;
+
+	/**
+	 * @param interval the minimum time between two checkpoints of the DP, in nanoseconds
+	 * @param resume whether saved progress should be used; if not, it is removed
+	 */
+	Checkpoint(File directory, File input, long interval, boolean resume) throws IOException {
+		this.directory = directory;
+		this.interval = interval;
+		this.resume = resume;
+		this.inputLength = input.length();
+		this.inputChecksum = TreeCache.checksum(input);
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create the checkpoint directory " + directory);
+		}
+		if (!resume) {
+			file("replicates").delete();
+			file("searchspace").delete();
+			file("dp").delete();
+		}
+	}
+
+	private File file(String name) {
+		return new File(directory, name);
+	}
+
+	long getInterval() {
+		return interval;
+	}
+
+	/**
+	 * Saves the set X of the current run
+	 */
+	<T> void writeSearchSpace(AbstractDataCollection<T> dataCollection) throws IOException {
+		File file = file("searchspace");
+		DataOutputStream out = create(file);
+		try {
+			writeHeader(out);
+			dataCollection.writeSetX(out);
+		} finally {
+			out.close();
+		}
+		commit(file);
+	}
+
+	/**
+	 * Adds the saved set X of the current run to the data collection
+	 */
+	<T> void readSearchSpace(AbstractInference<T> inference, AbstractDataCollection<T> dataCollection)
+			throws IOException {
+		DataInputStream in = open(file("searchspace"));
+		if (in == null) {
+			throw new IOException("The checkpoint in " + directory + " cannot be read");
+		}
+		try {
+			dataCollection.loadSetX(inference, in, file("searchspace").getPath());
+		} finally {
+			in.close();
+		}
+	}
+
+	private DataOutputStream create(File file) throws IOException {
+		return new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(new File(file.getPath() + ".tmp")), 1 << 16));
+	}
+
+	private void commit(File file) throws IOException {
+		if (!new File(file.getPath() + ".tmp").renameTo(file)) {
+			throw new IOException("Could not write " + file);
+		}
+	}
+
+	private void writeHeader(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(inputLength);
+		out.writeLong(inputChecksum);
+	}
+
+	/**
+	 * @return an open stream after the header, or null if the file does not
+	 * 	exist, was not written by this version, or was written for another input
+	 */
+	private DataInputStream open(File file) throws IOException {
+		if (!resume || !file.isFile()) {
+			return null;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file), 1 << 16));
+		if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+			in.close();
+			return null;
+		}
+		if (in.readLong() != inputLength || in.readLong() != inputChecksum) {
+			in.close();
+			throw new RuntimeException("The checkpoint in " + directory
+					+ " was written for a different input file");
+		}
+		return in;
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	private static byte[] serialize(Random random) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(random);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static Random deserialize(byte[] bytes) throws IOException {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+		try {
+			return (Random) in.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Saves the bootstrap replicates finished so far (the last of them just
+	 * finished), with the lines written for them to the output.
+	 */
+	void writeReplicates(List<Tree> trees, List<String> lines) throws IOException {
+		File file = file("replicates");
+		DataOutputStream out = create(file);
+		try {
+			writeHeader(out);
+			out.writeInt(trees.size());
+			for (int i = 0; i < trees.size(); i++) {
+				writeString(out, lines.get(i));
+				writeString(out, trees.get(i).toNewick());
+			}
+			byte[] random = serialize(GlobalMaps.random);
+			out.writeInt(random.length);
+			out.write(random);
+		} finally {
+			out.close();
+		}
+		commit(file);
+	}
+
+	/**
+	 * Reads saved bootstrap replicates, writes their lines to the output,
+	 * and sets the random number generator to its state after the last of them.
+	 * @return the number of replicates read
+	 */
+	int readReplicates(List<Tree> trees, List<String> lines, BufferedWriter outbuffer) throws IOException {
+		DataInputStream in = open(file("replicates"));
+		if (in == null) {
+			return 0;
+		}
+		try {
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String line = readString(in);
+				lines.add(line);
+				outbuffer.write(line);
+				trees.add(new NewickReader(new StringReader(readString(in))).readTree());
+			}
+			outbuffer.flush();
+			byte[] random = new byte[in.readInt()];
+			in.readFully(random);
+			GlobalMaps.random = deserialize(random);
+			return count;
+		} catch (ParseException e) {
+			throw new IOException(e);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return true if the DP of the given run can be resumed
+	 */
+	boolean hasDP(int run) throws IOException {
+		DataInputStream in = open(file("dp"));
+		if (in == null) {
+			return false;
+		}
+		try {
+			return in.readInt() == run && file("searchspace").isFile();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Called once X of the current run is built (or loaded);
+	 * later checkpoints of the DP restore the random number generator to this point
+	 */
+	void searchSpaceDone() throws IOException {
+		randomAfterSetX = serialize(GlobalMaps.random);
+	}
+
+	/**
+	 * Removes the checkpoint of the DP; called when a run finishes
+	 */
+	void runDone() {
+		file("dp").delete();
+	}
+
+	/**
+	 * Saves the state of the DP of the given inference. No other thread
+	 * should use the DP while this runs.
+	 */
+	<T> void writeDP(AbstractInference<T> inference, int run) throws IOException {
+		File file = file("dp");
+		DataOutputStream out = create(file);
+		try {
+			writeHeader(out);
+			out.writeInt(run);
+			out.writeInt(randomAfterSetX.length);
+			out.write(randomAfterSetX);
+			out.writeInt(inference.passesDone);
+			out.writeDouble(inference.greedyScore);
+			out.writeDouble(inference.estimationFactor);
+			AbstractWeightCalculator<T> calculator = inference.weightCalculator;
+			out.writeBoolean(calculator.savesWeights());
+			if (calculator.savesWeights()) {
+				calculator.weights.write(out);
+			}
+			DPTable dp = inference.dpTable;
+			int n = GlobalMaps.taxonIdentifier.taxonCount();
+			long[] words = new long[(n + 63) / 64];
+			int size = dp.size();
+			out.writeInt(n);
+			out.writeInt(size);
+			for (int id = 0; id < size; id++) {
+				Vertex v = dp.vertex(id);
+				AbstractDataCollection.writeCluster(out, v.getCluster().getBitSet(), words);
+				out.writeByte(dp.getDone(v));
+				out.writeDouble(dp.getMaxScore(v));
+				out.writeDouble(dp.getEstimated(v));
+				out.writeDouble(dp.getUpperBound(v));
+				out.writeDouble(dp.getWeight(v));
+				Vertex l = dp.getLeft(v), r = dp.getRight(v);
+				out.writeInt(l == null ? -1 : dp.id(l));
+				out.writeInt(r == null ? -1 : dp.id(r));
+			}
+			for (int id = 0; id < size; id++) {
+				dp.writeResolutions(out, id);
+			}
+		} finally {
+			out.close();
+		}
+		commit(file);
+	}
+
+	/**
+	 * Sets the random number generator to its state after X of the run
+	 * in the checkpoint was built
+	 */
+	void restoreRandom() throws IOException {
+		DataInputStream in = open(file("dp"));
+		if (in == null) {
+			throw new IOException("The checkpoint in " + directory + " cannot be read");
+		}
+		try {
+			in.readInt();
+			byte[] random = new byte[in.readInt()];
+			in.readFully(random);
+			GlobalMaps.random = deserialize(random);
+			randomAfterSetX = random;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Restores the state of the DP. Vertices are matched to those of
+	 * clusters by their clusters; vertices made during the DP are made again.
+	 * Saved vertices with the same cluster are merged into one.
+	 * The top vertex is left NOT_DONE, so that the DP starts from it again;
+	 * its state is kept in inference.resumedTopState.
+	 */
+	<T> void readDP(AbstractInference<T> inference, IClusterCollection clusters) throws IOException {
+		DataInputStream in = open(file("dp"));
+		if (in == null) {
+			throw new IOException("The checkpoint in " + directory + " cannot be read");
+		}
+		try {
+			in.readInt();
+			in.skipBytes(in.readInt());
+			inference.passesDone = in.readInt();
+			inference.greedyScore = in.readDouble();
+			inference.estimationFactor = in.readDouble();
+			AbstractWeightCalculator<T> calculator = inference.weightCalculator;
+			if (in.readBoolean()) {
+				if (calculator.savesWeights()) {
+					calculator.weights.read(in);
+				} else {
+					WeightCache.skip(in);
+				}
+			}
+			HashMap<BitSet, Vertex> vertices = new HashMap<BitSet, Vertex>();
+			for (Set<Vertex> s : clusters.getSubClusters()) {
+				for (Vertex v : s) {
+					vertices.put(v.getCluster().getBitSet(), v);
+				}
+			}
+			Vertex top = clusters.getTopVertex();
+			vertices.put(top.getCluster().getBitSet(), top);
+			DPTable dp = inference.dpTable;
+			int n = in.readInt(), size = in.readInt();
+			long[] words = new long[(n + 63) / 64];
+			BitSet[] cluster = new BitSet[size];
+			byte[] done = new byte[size];
+			double[] maxScore = new double[size], estimated = new double[size],
+					upperBound = new double[size], weight = new double[size];
+			int[] left = new int[size], right = new int[size];
+			// The saved vertex kept for each cluster
+			HashMap<BitSet, Integer> kept = new HashMap<BitSet, Integer>();
+			HashSet<BitSet> duplicated = new HashSet<BitSet>();
+			for (int id = 0; id < size; id++) {
+				cluster[id] = AbstractDataCollection.readCluster(in, n, words);
+				done[id] = in.readByte();
+				maxScore[id] = in.readDouble();
+				estimated[id] = in.readDouble();
+				upperBound[id] = in.readDouble();
+				weight[id] = in.readDouble();
+				left[id] = in.readInt();
+				right[id] = in.readInt();
+				Integer other = kept.get(cluster[id]);
+				if (other == null) {
+					kept.put(cluster[id], id);
+				} else {
+					duplicated.add(cluster[id]);
+					if (done[id] == DPTable.DONE && (done[other] != DPTable.DONE
+							|| maxScore[id] > maxScore[other])) {
+						kept.put(cluster[id], id);
+					}
+				}
+			}
+			/*
+			 * Several saved vertices can have the same cluster; they become
+			 * one vertex. It keeps the finished one with the best score. If
+			 * none is finished, their bounds and estimates may disagree, and
+			 * so the vertex starts afresh.
+			 */
+			Vertex[] byId = new Vertex[size];
+			boolean[] restored = new boolean[size];
+			for (int id = 0; id < size; id++) {
+				BitSet bs = cluster[id];
+				Vertex v = vertices.get(bs);
+				if (v == null) {
+					STITreeCluster c = GlobalMaps.taxonIdentifier.newCluster();
+					c.setCluster(bs);
+					v = c.new Vertex();
+					vertices.put(bs, v);
+				}
+				byId[id] = v;
+				restored[id] = kept.get(bs) == id
+						&& (!duplicated.contains(bs) || done[id] == DPTable.DONE);
+			}
+			for (int id = 0; id < size; id++) {
+				if (!restored[id]) {
+					continue;
+				}
+				Vertex v = byId[id];
+				dp.setDone(v, done[id]);
+				dp.setMaxScore(v, maxScore[id]);
+				dp.setEstimated(v, estimated[id]);
+				dp.setUpperBound(v, upperBound[id]);
+				dp.setResolution(v, left[id] < 0 ? null : byId[left[id]],
+						right[id] < 0 ? null : byId[right[id]], weight[id]);
+			}
+			for (int id = 0; id < size; id++) {
+				if (restored[id]) {
+					dp.readResolutions(in, byId[id], byId);
+				} else {
+					DPTable.skipResolutions(in);
+				}
+			}
+			if (!duplicated.isEmpty()) {
+				System.err.println(duplicated.size()
+						+ " clusters had several saved vertices; they were merged");
+			}
+			inference.resumedTopState = dp.getDone(top);
+			dp.setDone(top, DPTable.NOT_DONE);
+			System.err.println("Resuming the dynamic programming from " + file("dp")
+					+ " (" + size + " vertices, " + inference.passesDone + " passes finished)");
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -8,6 +8,7 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.io.Reader;
 import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -22,6 +23,11 @@ import java.util.Random;
 import java.util.Set;
 import java.util.Stack;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import phylonet.tree.io.NewickReader;
 import phylonet.tree.io.ParseException;
@@ -45,6 +51,16 @@ public class CommandLine{
     protected static String _versinon = "5.7.8";
 
     protected static SimpleJSAP jsap;
+
+    /**
+     * The number of threads used for parsing input trees
+     */
+    private static int readThreads = 1;
+
+    /**
+     * Input trees are parsed in batches of this many trees
+     */
+    private static final int READ_BATCH_SIZE = 1000;
     
     private static void exitWithErr(String extraMessage) {
         System.err.println();
@@ -214,6 +230,92 @@ public class CommandLine{
                             JSAP.NO_SHORTFLAG, "remove-bipartitions",
                             "removes bipartitions of the provided extra trees (with species labels)"),
 
+                    new FlaggedOption("threads", 
+                            JSAP.INTEGER_PARSER, "1", JSAP.NOT_REQUIRED,
+                            'T', "threads",
+                            "the number of threads used in the dynamic programming. "
+                            + "Use 0 to use all available processors."),
+
+                    new FlaggedOption("weight cache", 
+                            JSAP.INTEGER_PARSER, "0", JSAP.NOT_REQUIRED,
+                            JSAP.NO_SHORTFLAG, "weight-cache-mb",
+                            "save computed weights in a cache bounded to this many MB, "
+                            + "evicting weights that are cheap to recompute or rarely used first. "
+                            + "Use 0 (default) for no bounded cache."),
+
+                    new FlaggedOption("resolution cache", 
+                            JSAP.INTEGER_PARSER, "0", JSAP.NOT_REQUIRED,
+                            JSAP.NO_SHORTFLAG, "resolution-cache-mb",
+                            "keep resolutions saved between passes of the dynamic programming "
+                            + "within this many MB; resolutions that do not fit are recomputed. "
+                            + "Use 0 (default) for no limit."),
+
+                    new FlaggedOption("dp statistics", 
+                            FileStringParser.getParser(), null, JSAP.NOT_REQUIRED,
+                            JSAP.NO_SHORTFLAG, "dp-statistics",
+                            "a filename for writing statistics of the dynamic programming as JSON: "
+                            + "for each pass, vertices and resolutions visited and pruned, weights asked for, "
+                            + "and time. With bootstrapping, statistics of the main analysis are kept."),
+
+                    new FlaggedOption("anytime file", 
+                            FileStringParser.getParser(), null, JSAP.NOT_REQUIRED,
+                            JSAP.NO_SHORTFLAG, "anytime",
+                            "a filename for writing the greedy tree and then the estimated tree "
+                            + "as soon as each is found, before the exact search finishes. "
+                            + "With bootstrapping, trees of the main analysis are kept."),
+
+                    new FlaggedOption("time budget", 
+                            JSAP.DOUBLE_PARSER, "0", JSAP.NOT_REQUIRED,
+                            JSAP.NO_SHORTFLAG, "time-budget",
+                            "stop the exact search after this many seconds of dynamic programming "
+                            + "and output the best tree found so far. The greedy and estimated trees "
+                            + "are always found first. Use 0 (default) for no limit."),
+
+                    new FlaggedOption("dp engine", 
+                            JSAP.STRING_PARSER, "top-down", JSAP.NOT_REQUIRED,
+                            JSAP.NO_SHORTFLAG, "dp-engine",
+                            "how the dynamic programming is solved: top-down (default) starts from "
+                            + "the root and prunes sub-problems using bounds; bottom-up solves all clusters, "
+                            + "smaller ones first, which prunes nothing but parallelizes better. "
+                            + "Both find the same score."),
+
+                    new FlaggedOption("save search space", 
+                            FileStringParser.getParser(), null, JSAP.NOT_REQUIRED,
+                            JSAP.NO_SHORTFLAG, "save-searchspace",
+                            "a filename for saving the set of clusters (X) used as the search space, "
+                            + "in a binary format that can be read with --load-searchspace. "
+                            + "With bootstrapping, the set of the main analysis is kept."),
+
+                    new FlaggedOption("load search space", 
+                            FileStringParser.getParser(), null, JSAP.NOT_REQUIRED,
+                            JSAP.NO_SHORTFLAG, "load-searchspace",
+                            "a file written with --save-searchspace; its set of clusters (X) is used instead of "
+                            + "building one from gene trees. Gene trees should have the same taxa as when it was saved. "
+                            + "The set is used as saved: clusters from -x, -e and -f options are not added or removed again."),
+
+                    new FlaggedOption("checkpoint", 
+                            FileStringParser.getParser(), null, JSAP.NOT_REQUIRED,
+                            JSAP.NO_SHORTFLAG, "checkpoint",
+                            "a directory for saving progress: finished bootstrap replicates, and periodically, "
+                            + "the state of the dynamic programming. Use with --resume to continue an interrupted run."),
+
+                    new FlaggedOption("checkpoint interval", 
+                            JSAP.DOUBLE_PARSER, "30", JSAP.NOT_REQUIRED,
+                            JSAP.NO_SHORTFLAG, "checkpoint-interval",
+                            "minutes between two saves of the state of the dynamic programming (default 30)."),
+
+                    new Switch("resume",
+                            JSAP.NO_SHORTFLAG, "resume",
+                            "continue an interrupted run from the directory given with --checkpoint; "
+                            + "input and options should be the same as those of the interrupted run."),
+
+                    new FlaggedOption("tree cache", 
+                            FileStringParser.getParser(), null, JSAP.NOT_REQUIRED,
+                            JSAP.NO_SHORTFLAG, "tree-cache",
+                            "a binary cache of the parsed input gene trees. If the file exists and matches "
+                            + "the input file (by checksum), trees are loaded from it instead of being parsed; "
+                            + "otherwise, it is written after parsing."),
+
                     new FlaggedOption("trimming threshold", 
 	                        JSAP.DOUBLE_PARSER, "0", JSAP.NOT_REQUIRED,
 	                        'd', "trimming",
@@ -313,13 +415,16 @@ public class CommandLine{
         samplingrounds = config.contains("samplingrounds")? config.getInt("samplingrounds"):null;        
         polylimit = config.contains("polylimit")? config.getInt("polylimit"):null;
              
+        readThreads = config.getInt("threads") == 0 ? 
+        		Runtime.getRuntime().availableProcessors() : Math.max(1, config.getInt("threads"));
+             
         try {
         	
         	//GlobalMaps.taxonIdentifier.taxonId("0");
 
         	//System.err.println("Main input file: "+config.getFile("input file"));
         	readInputTrees(mainTrees,
-        			readTreeFileAsString(config.getFile("input file")),
+        			config.getFile("input file"), config.getFile("tree cache"),
         					rooted, true, false, minleaves, 
         					config.getInt("branch annotation level"), null);			
             System.err.println( mainTrees.size() +" trees read from " + config.getFile("input file"));
@@ -450,6 +555,56 @@ public class CommandLine{
     	options.setDLbdWeigth(wh); 
     	options.setCS(1d);
     	options.setCD(1d);
+    	if (config.getInt("threads") < 0) {
+    		exitWithErr("Error: the number of threads cannot be negative");
+    	}
+    	options.setThreads(config.getInt("threads") == 0 ? 
+    			Runtime.getRuntime().availableProcessors() : config.getInt("threads"));
+    	if (config.getInt("weight cache") < 0) {
+    		exitWithErr("Error: the weight cache size cannot be negative");
+    	}
+    	options.setWeightCacheMB(config.getInt("weight cache"));
+    	if (config.getInt("resolution cache") < 0) {
+    		exitWithErr("Error: the resolution cache size cannot be negative");
+    	}
+    	options.setResolutionCacheMB(config.getInt("resolution cache"));
+    	if (config.getFile("dp statistics") != null) {
+    		options.setDPStatisticsFile(config.getFile("dp statistics").getPath());
+    	}
+    	if (config.getFile("anytime file") != null) {
+    		options.setAnytimeFile(config.getFile("anytime file").getPath());
+    	}
+    	if (config.getDouble("time budget") < 0) {
+    		exitWithErr("Error: the time budget cannot be negative");
+    	}
+    	options.setTimeBudget(config.getDouble("time budget"));
+    	if (config.getFile("save search space") != null) {
+    		options.setSaveSearchSpaceFile(config.getFile("save search space").getPath());
+    	}
+    	if (config.getFile("load search space") != null) {
+    		if (config.getFile("bootstraps") != null) {
+    			exitWithErr("Error: the search space cannot be loaded when bootstrapping");
+    		}
+    		options.setLoadSearchSpaceFile(config.getFile("load search space").getPath());
+    	}
+    	if (config.getFile("checkpoint") != null) {
+    		if (config.getDouble("checkpoint interval") < 0) {
+    			exitWithErr("Error: the checkpoint interval cannot be negative");
+    		}
+    		options.setCheckpointDirectory(config.getFile("checkpoint").getPath());
+    		options.setCheckpointInterval(config.getDouble("checkpoint interval"));
+    		options.setResume(config.getBoolean("resume"));
+    	} else if (config.getBoolean("resume")) {
+    		exitWithErr("Error: --resume needs the --checkpoint directory");
+    	}
+    	if ("bottom-up".equals(config.getString("dp engine"))) {
+    		if (options.getAnytimeFile() != null || options.getTimeBudget() > 0) {
+    			exitWithErr("Error: the anytime output and the time budget need the top-down dynamic programming");
+    		}
+    		options.setBottomUpDP(true);
+    	} else if (!"top-down".equals(config.getString("dp engine"))) {
+    		exitWithErr("Error: the dynamic programming engine should be top-down or bottom-up");
+    	}
     	
     	return options;
     }
@@ -514,7 +669,7 @@ public class CommandLine{
 	        		mainTrees, outbuffer, bootstrapInputSets,  options, outgroup);
         }
         // TODO: debug info
-        System.err.println("Weight calculation took " + Polytree.time / 1000000000.0D + " secs");
+        System.err.println("Weight calculation took " + Polytree.time.get() / 1000000000.0D + " secs");
         
 	    System.err.println("ASTRAL finished in "  + 
 	            (System.currentTimeMillis() - startTime) / 1000.0D + " secs");
@@ -583,7 +738,7 @@ public class CommandLine{
 
 		    if (config.getFile("extra trees") != null) {
 		    	readInputTrees(extraTrees, 
-		        	readTreeFileAsString(config.getFile("extra trees")), 
+		        	config.getFile("extra trees"), 
 		                extrarooted, true, false, null, 1, null);
 		        System.err.println(extraTrees.size() + " extra trees read from "
 		                + config.getFile("extra trees"));
@@ -591,7 +746,7 @@ public class CommandLine{
 		    
 		    if (config.getFile("extra species trees") != null) {
 		    		readInputTrees(extraTrees,
-		        	readTreeFileAsString(config.getFile("extra species trees")), 
+		        	config.getFile("extra species trees"), 
 		                extrarooted, true, true, null, 1, null);
 		        System.err.println(extraTrees.size() + " extra trees read from "
 		                + config.getFile("extra trees"));
@@ -599,7 +754,7 @@ public class CommandLine{
 		    
 		    if (config.getFile("remove extra tree bipartitions") != null) {
 	    		readInputTrees(toRemoveExtraTrees,
-	        	readTreeFileAsString(config.getFile("remove extra tree bipartitions")), 
+	        	config.getFile("remove extra tree bipartitions"), 
 	                true, true, true, null, 1, null);
 	        System.err.println(toRemoveExtraTrees.size() + " extra trees to remove from search space read from "
 	                + config.getFile("remove extra tree bipartitions"));
@@ -613,15 +768,33 @@ public class CommandLine{
 		} 
 		
 		
-		int j = 0;
+		Checkpoint checkpoint = null;
 		List<Tree> bootstraps = new ArrayList<Tree>();
-		for ( List<String> input : bootstrapInputSets) {  
-		    System.err.println("\n======== Running bootstrap replicate " + j++);
+		List<String> bootstrapLines = new ArrayList<String>();
+		int j = 0;
+		if (options.getCheckpointDirectory() != null) {
+			checkpoint = new Checkpoint(new File(options.getCheckpointDirectory()), 
+					config.getFile("input file"), 
+					(long) (options.getCheckpointInterval() * 60e9), options.isResume());
+			j = checkpoint.readReplicates(bootstraps, bootstrapLines, outbuffer);
+			if (j > 0) {
+				System.err.println("Resuming after " + j + " finished bootstrap replicates");
+			}
+		}
+		for (; j < bootstrapInputSets.size(); j++) {  
+		    System.err.println("\n======== Running bootstrap replicate " + j);
 			List<Tree> trees = new ArrayList<Tree>();
-		    readInputTrees(trees, input, rooted, false, false, options.getMinLeaves(),
+		    readInputTrees(trees, bootstrapInputSets.get(j), rooted, false, false, options.getMinLeaves(),
             		config.getInt("branch annotation level"), null);
-		    bootstraps.add(runOnOneInput(criterion, 
-		             extraTrees,toRemoveExtraTrees, outbuffer, trees, null, outgroup, options));
+		    Tree st = runOnOneInput(criterion, extraTrees,toRemoveExtraTrees, outbuffer, 
+		    		trees, null, outgroup, options, checkpoint, j);
+		    bootstraps.add(st);
+		    if (checkpoint != null) {
+		    	// The line written by processSolution
+		    	bootstrapLines.add(st.toStringWD() + " \n");
+		    	checkpoint.writeReplicates(bootstraps, bootstrapLines);
+		    	checkpoint.runDone();
+		    }
 		}
 		
 		if (bootstraps != null && bootstraps.size() != 0) {
@@ -634,14 +807,18 @@ public class CommandLine{
 
 		System.err.println("\n======== Running the main analysis");
 		runOnOneInput(criterion, extraTrees, toRemoveExtraTrees,outbuffer, mainTrees, bootstraps, 
-		        outgroup, options);
+		        outgroup, options, checkpoint, bootstrapInputSets.size());
+		if (checkpoint != null) {
+			checkpoint.runDone();
+		}
 		   
 		outbuffer.close();
 	}
 
     private static Tree runOnOneInput(int criterion, List<Tree> extraTrees,
     		List<Tree> toRemoveExtraTrees, BufferedWriter outbuffer, List<Tree> input, 
-            Iterable<Tree> bootstraps, String outgroup, Options options) {
+            Iterable<Tree> bootstraps, String outgroup, Options options,
+            Checkpoint checkpoint, int run) {
         long startTime;
         startTime = System.currentTimeMillis();
 //        int removedTrees = 0;
@@ -659,6 +836,9 @@ public class CommandLine{
 //        System.err.println("removed trees"+ removedTrees);	
         AbstractInference inference =
                 initializeInference(criterion, input, extraTrees,toRemoveExtraTrees, options);
+        if (checkpoint != null) {
+        	inference.setCheckpoint(checkpoint, run);
+        }
         
         inference.setup(); 
         
@@ -723,100 +903,256 @@ public class CommandLine{
 
     private static List<String> readTreeFileAsString(File file)
     				throws FileNotFoundException, IOException {
-    	String line;		
     	List<String> trees = new ArrayList<String>();
-    	BufferedReader treeBufferReader = new BufferedReader(new FileReader(file));
-		while ((line = treeBufferReader .readLine()) != null) {
-    		if (line.length() > 0) {
-    			line = line.replaceAll("\\)[^,);]*", ")");
-    			trees.add(line);
-    		}
+    	TreeReader treeReader = new TreeReader(file);
+		while (treeReader.next()) {
+			trees.add(treeReader.toString());
     	}
-    	treeBufferReader.close();
+    	treeReader.close();
     	return trees;
 
     }
 
+    /**
+     * Reads trees from a file, streaming it one tree at a time
+     */
+    private static void readInputTrees(List<Tree> trees, File file, 
+    		boolean rooted, boolean checkCompleteness, boolean stLablel,
+    		Integer minleaves, int annotation, String outgroup)
+    				throws FileNotFoundException, IOException {
+    	readInputTrees(trees, file, null, rooted, checkCompleteness, stLablel,
+    			minleaves, annotation, outgroup);
+    }
+
+    /**
+     * Reads trees from a file. If a cache file is given, trees are loaded 
+     * from it when it matches the input file; otherwise, trees are parsed
+     * and the cache is (re)written.
+     */
+    private static void readInputTrees(List<Tree> trees, File file, File cache,
+    		boolean rooted, boolean checkCompleteness, boolean stLablel,
+    		Integer minleaves, int annotation, String outgroup)
+    				throws FileNotFoundException, IOException {
+    	List<Tree> cached = null;
+    	if (cache != null && outgroup == null) {
+    		long start = System.currentTimeMillis();
+    		cached = TreeCache.read(cache, file, rooted);
+    		if (cached != null) {
+    			System.err.println("Trees loaded from the cache " + cache + " in " 
+    					+ (System.currentTimeMillis() - start) / 1000.0D + " secs");
+    			readInputTrees(trees, new TreeReader(new ArrayList<String>()), cached.iterator(), null,
+    					rooted, checkCompleteness, stLablel, minleaves, annotation, outgroup);
+    			return;
+    		}
+    	}
+    	List<Tree> parsed = cache != null && outgroup == null ? new ArrayList<Tree>() : null;
+    	TreeReader treeReader = new TreeReader(file);
+    	readInputTrees(trees, treeReader, null, parsed, rooted, checkCompleteness, stLablel,
+    			minleaves, annotation, outgroup);
+    	treeReader.close();
+    	if (parsed != null) {
+    		// Written before inference, which may change the trees
+    		TreeCache.write(cache, file, rooted, parsed);
+    		System.err.println("Parsed trees are cached in " + cache);
+    	}
+    }
+
     private static void readInputTrees(List<Tree> trees, List<String> lines, 
     		boolean rooted, boolean checkCompleteness, boolean stLablel,
     		Integer minleaves, int annotation, String outgroup)
     				throws FileNotFoundException, IOException {
+    	readInputTrees(trees, new TreeReader(lines), null, null, rooted, checkCompleteness, stLablel,
+    			minleaves, annotation, outgroup);
+    }
+
+    /**
+     * @param cached if not null, trees are taken from it instead of parsing lines
+     * @param parsed if not null, all parsed trees (including nulls for empty
+     *  lines) are added to it, before any is skipped
+     */
+    private static void readInputTrees(List<Tree> trees, TreeReader lines, 
+    		Iterator<Tree> cached, List<Tree> parsed,
+    		boolean rooted, boolean checkCompleteness, boolean stLablel,
+    		Integer minleaves, int annotation, String outgroup)
+    				throws FileNotFoundException, IOException {
     	
     	List<Integer> skipped = new Stack<Integer>();
     	int l = 0;			
+    	ExecutorService pool = null;
     	try {
     		TreeSet<String> allleaves = new TreeSet<String>();
-    		for (String line : lines) {
-    			l++;
-    			Set<String> previousTreeTaxa = new HashSet<String>();
-    			if (line.length()  == 0) {
-    				continue;
-    			}
-    			NewickReader nr = new NewickReader(new StringReader(line));
-    			if (rooted) {
-    				STITree<Double> gt = new STITree<Double>(true);
-    				nr.readTree(gt);
-    				if (checkCompleteness) {
-    					if (previousTreeTaxa.isEmpty()) {
-    						previousTreeTaxa.addAll(Arrays.asList(gt
-    								.getLeaves()));
-    					} else {
-    						if (!previousTreeTaxa.containsAll(Arrays.asList(gt
-    								.getLeaves()))) {
-    							throw new RuntimeException(
-    									"Not all trees are on the same set of taxa: "
-    											+ gt.getLeaves() + "\n"
-    											+ previousTreeTaxa);
-    						}
-    					}
+    		while (true) {
+    			/*
+    			 * Trees are parsed (in parallel if possible) one batch at a time.
+    			 * Taxa are then registered sequentially in the input order so that
+    			 * taxon IDs do not depend on the number of threads.
+    			 */
+    			List<Tree> batch;
+    			if (cached != null) {
+    				batch = new ArrayList<Tree>();
+    				while (batch.size() < READ_BATCH_SIZE && cached.hasNext()) {
+    					batch.add(cached.next());
     				}
-    				if (minleaves == null || gt.getLeafCount() >= minleaves) {
-    					trees.add(gt);
-    				} else {
-    					skipped.add(l);
+    			} else if (readThreads > 1) {
+    				List<String> strings = new ArrayList<String>();
+    				while (strings.size() < READ_BATCH_SIZE && lines.next()) {
+    					strings.add(lines.toString());
     				}
-    			} else {	
-    				//System.err.println(".");
-    				MutableTree tr = nr.readTree();
-    				if (minleaves == null || tr.getLeafCount() >= minleaves) {
-    					trees.add(tr);
-    				} else {
-    					skipped.add(l);
+    				if (pool == null && strings.size() > 1) {
+    					pool = Executors.newFixedThreadPool(readThreads);
     				}
-                	if (outgroup != null) {
-                		tr.rerootTreeAtNode(tr.getNode(outgroup));
-                	}
-	        		Trees.removeBinaryNodes(tr);
-    				if (stLablel) {
-    					GlobalMaps.taxonNameMap.getSpeciesIdMapper().stToGt(tr);
-    				}
-    				String[] leaves = tr.getLeaves().clone();
-    				if (annotation != 6) {
-	    				for (int i = 0; i < leaves.length; i++) {
-	    					//if (!stLablel) {
-	    						GlobalMaps.taxonIdentifier.taxonId(leaves[i]);
-	    						//} else {
-	    						//   GlobalMaps.taxonNameMap.getSpeciesIdMapper().speciesId(leaves[i]);
-	    						//}
-	    				}
-    				} else{
-    					allleaves.addAll(Arrays.asList(leaves));
+    				batch = parseTrees(strings, rooted, outgroup, pool, l);
+    			} else {
+    				batch = new ArrayList<Tree>(1);
+    				if (lines.next()) {
+    					batch.add(lines.isEmpty() ? null :
+    						parseTree(lines.reader(), rooted, outgroup));
     				}
     			}
-    			if (annotation == 6) {
-	    			for (String leaf: allleaves) {
-						GlobalMaps.taxonIdentifier.taxonId(leaf);
+    			if (batch.isEmpty()) {
+    				break;
+    			}
+    			if (parsed != null) {
+    				parsed.addAll(batch);
+    			}
+    			for (Tree tree : batch) {
+	    			l++;
+	    			Set<String> previousTreeTaxa = new HashSet<String>();
+	    			if (tree == null) {
+	    				continue;
+	    			}
+	    			if (rooted) {
+	    				if (checkCompleteness) {
+	    					if (previousTreeTaxa.isEmpty()) {
+	    						previousTreeTaxa.addAll(Arrays.asList(tree
+	    								.getLeaves()));
+	    					} else {
+	    						if (!previousTreeTaxa.containsAll(Arrays.asList(tree
+	    								.getLeaves()))) {
+	    							throw new RuntimeException(
+	    									"Not all trees are on the same set of taxa: "
+	    											+ tree.getLeaves() + "\n"
+	    											+ previousTreeTaxa);
+	    						}
+	    					}
+	    				}
+	    				if (minleaves == null || tree.getLeafCount() >= minleaves) {
+	    					trees.add(tree);
+	    				} else {
+	    					skipped.add(l);
+	    				}
+	    			} else {	
+	    				//System.err.println(".");
+	    				MutableTree tr = (MutableTree) tree;
+	    				if (minleaves == null || tr.getLeafCount() >= minleaves) {
+	    					trees.add(tr);
+	    				} else {
+	    					skipped.add(l);
+	    				}
+	    				if (stLablel) {
+	    					GlobalMaps.taxonNameMap.getSpeciesIdMapper().stToGt(tr);
+	    				}
+	    				String[] leaves = tr.getLeaves().clone();
+	    				if (annotation != 6) {
+		    				for (int i = 0; i < leaves.length; i++) {
+		    					//if (!stLablel) {
+		    						GlobalMaps.taxonIdentifier.taxonId(leaves[i]);
+		    						//} else {
+		    						//   GlobalMaps.taxonNameMap.getSpeciesIdMapper().speciesId(leaves[i]);
+		    						//}
+		    				}
+	    				} else{
+	    					allleaves.addAll(Arrays.asList(leaves));
+	    				}
+	    			}
+	    			if (annotation == 6) {
+		    			for (String leaf: allleaves) {
+							GlobalMaps.taxonIdentifier.taxonId(leaf);
+		    			}
 	    			}
     			}
     		}
     	} catch (ParseException e) {
-    		throw new RuntimeException("Failed to Parse Tree number: " + l ,e);
+    		throw new RuntimeException("Failed to Parse Tree number: " + (l + 1) ,e);
+    	} finally {
+    		if (pool != null) {
+    			pool.shutdown();
+    		}
     	}
     	if (skipped.size() > 0) {
     		System.err.println("Skipping the following tree(s) because they had less than " + minleaves+" leaves: \n" + skipped);
     	}
     }
 
+    /**
+     * Parses one tree. Unrooted trees are rerooted at the outgroup (if given)
+     * and their binary nodes are removed. Taxa are not registered here, 
+     * so this can run on any thread.
+     */
+    private static Tree parseTree(Reader in, boolean rooted, String outgroup)
+    		throws IOException, ParseException {
+    	NewickReader nr = new NewickReader(in);
+    	if (rooted) {
+    		STITree<Double> gt = new STITree<Double>(true);
+    		nr.readTree(gt);
+    		return gt;
+    	}
+    	MutableTree tr = nr.readTree();
+    	if (outgroup != null) {
+    		tr.rerootTreeAtNode(tr.getNode(outgroup));
+    	}
+    	Trees.removeBinaryNodes(tr);
+    	return tr;
+    }
+
+    /**
+     * Parses a batch of trees on the given pool.
+     * @param first the number of trees read before this batch
+     * @return parsed trees in the input order; null for empty lines
+     */
+    private static List<Tree> parseTrees(List<String> strings, 
+    		final boolean rooted, final String outgroup, ExecutorService pool, int first) 
+    				throws IOException, ParseException {
+    	List<Tree> ret = new ArrayList<Tree>(strings.size());
+    	if (pool == null) {
+    		for (String line : strings) {
+    			ret.add(line.length() == 0 ? null :
+    				parseTree(new StringReader(line), rooted, outgroup));
+    		}
+    		return ret;
+    	}
+    	List<Callable<Tree>> tasks = new ArrayList<Callable<Tree>>(strings.size());
+    	for (final String line : strings) {
+    		tasks.add(new Callable<Tree>() {
+    			@Override
+    			public Tree call() throws Exception {
+    				return line.length() == 0 ? null :
+    					parseTree(new StringReader(line), rooted, outgroup);
+    			}
+    		});
+    	}
+    	try {
+    		List<Future<Tree>> futures = pool.invokeAll(tasks);
+    		for (int i = 0; i < futures.size(); i++) {
+    			try {
+    				ret.add(futures.get(i).get());
+    			} catch (ExecutionException e) {
+    				if (e.getCause() instanceof ParseException) {
+    					throw new RuntimeException("Failed to Parse Tree number: " + 
+    							(first + i + 1), e.getCause());
+    				}
+    				if (e.getCause() instanceof RuntimeException) {
+    					throw (RuntimeException) e.getCause();
+    				}
+    				throw new RuntimeException(e.getCause());
+    			}
+    		}
+    	} catch (InterruptedException e) {
+    		throw new RuntimeException(e);
+    	}
+    	return ret;
+    }
+
 
     private static void writeTreeToFile(BufferedWriter outbuffer, Tree t) {
         try {
@@ -9,6 +9,8 @@ import phylonet.tree.model.sti.STITreeCluster.Vertex;
 
 public class DLComputeMinCostTask extends AbstractComputeMinCostTask<STBipartition>{
 
+	private static final long serialVersionUID = 1L;
+
 	DLInference inference;
 	DLDataCollection dataCollection;
 	DLWeightCalculator weightCalculator;
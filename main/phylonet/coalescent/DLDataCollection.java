@@ -1,5 +1,6 @@
 package phylonet.coalescent;
 
+import java.io.DataInputStream;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -35,6 +36,12 @@ public class DLDataCollection extends AbstractDataCollection<STBipartition>{
 		this.clusters = clusters;
 	}
 
+	@Override
+	public void loadSetX(AbstractInference<STBipartition> inference, DataInputStream in, String source) {
+		throw new RuntimeException("Not implemented");
+	}
+
+	@Override
 	public void formSetX(AbstractInference<STBipartition> inference) {
 
 		double unweigthedConstant = 0;
@@ -108,7 +108,7 @@ public class DLInference extends AbstractInference<STBipartition> {
 
 
 	Long getTotalCost(Vertex all) {
-		return (long) (((DLDataCollection)this.dataCollection).sigmaNs - all._max_score);
+		return (long) (((DLDataCollection)this.dataCollection).sigmaNs - dpTable.getMaxScore(all));
 	}
 
 
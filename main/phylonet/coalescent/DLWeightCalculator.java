@@ -138,10 +138,10 @@ class DLWeightCalculator extends AbstractWeightCalculator<STBipartition>{
 								continue;
 							}
 							//TODO: this should happen in abstract class?
-							weights.put(
+							Long w = getCalculatedWeight(stSTB);
+							putCalculatedWeight(
 									stSTB,
-									(weights.containsKey(stSTB) ? weights
-											.get(stSTB) : 0)
+									(w != null ? w : 0)
 											+ dataCollection.geneTreeSTBCount.get(gtSTB));
 							alreadyProcessedSTBs.add(stSTB);
 						}
@@ -153,6 +153,11 @@ class DLWeightCalculator extends AbstractWeightCalculator<STBipartition>{
 
 	
 
+	@Override
+	void fingerprint(STBipartition stb, long[] key) {
+		stb.fingerprint(key);
+	}
+
 	@Override
 	Long calculateWeight(STBipartition stb,
 			AbstractComputeMinCostTask<STBipartition> task) {
@@ -0,0 +1,119 @@
+package phylonet.coalescent;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters of the dynamic programming, kept for each pass
+ * (EXACT, ESTIMATE, and GREEDY), used to judge how well the bounds prune.
+ * For each pass, we count:
+ *   -- Vertices expanded, i.e., whose resolutions were visited
+ *   -- Vertices pruned, i.e., skipped because their bound did not reach
+ *      the target given by the parent
+ *   -- Pairs (resolutions) evaluated and pairs pruned by the upper bound
+ *   -- Weights asked for, and weights computed because they were not saved
+ *   -- Time spent in the pass
+ * Scores of the root (its upper bound, and the greedy, estimated, and
+ * exact scores) are kept as well. All scores are in the units of the DP.
+ *
+ * Counters can be updated by many threads.
+ *
+ * @author smirarab
+ *
+ */
+final class DPStatistics {
+
+	private static final String[] PASSES = new String[] {"exact", "estimate", "greedy"};
+
+	private final AtomicLongArray verticesExpanded = new AtomicLongArray(PASSES.length);
+	private final AtomicLongArray verticesPruned = new AtomicLongArray(PASSES.length);
+	private final AtomicLongArray pairsEvaluated = new AtomicLongArray(PASSES.length);
+	private final AtomicLongArray pairsPruned = new AtomicLongArray(PASSES.length);
+	private final AtomicLongArray weightQueries = new AtomicLongArray(PASSES.length);
+	private final AtomicLongArray weightsComputed = new AtomicLongArray(PASSES.length);
+	private final AtomicLongArray nanos = new AtomicLongArray(PASSES.length);
+
+	private volatile double upperBound = Double.NaN, greedyScore = Double.NaN,
+			estimatedScore = Double.NaN, exactScore = Double.NaN;
+
+	void vertexExpanded(byte pass) {
+		verticesExpanded.incrementAndGet(pass);
+	}
+
+	void vertexPruned(byte pass) {
+		verticesPruned.incrementAndGet(pass);
+	}
+
+	void pairEvaluated(byte pass) {
+		pairsEvaluated.incrementAndGet(pass);
+	}
+
+	void pairsPruned(byte pass, long count) {
+		pairsPruned.addAndGet(pass, count);
+	}
+
+	/**
+	 * @param queries number of weights asked for
+	 * @param computed number of them that were not saved
+	 */
+	void weights(byte pass, long queries, long computed) {
+		weightQueries.addAndGet(pass, queries);
+		weightsComputed.addAndGet(pass, computed);
+	}
+
+	void time(byte pass, long nanoseconds) {
+		nanos.addAndGet(pass, nanoseconds);
+	}
+
+	void setUpperBound(double upperBound) {
+		this.upperBound = upperBound;
+	}
+
+	void setGreedyScore(double greedyScore) {
+		this.greedyScore = greedyScore;
+	}
+
+	void setEstimatedScore(double estimatedScore) {
+		this.estimatedScore = estimatedScore;
+	}
+
+	void setExactScore(double exactScore) {
+		this.exactScore = exactScore;
+	}
+
+	/**
+	 * @return all counters as a JSON object
+	 */
+	String toJSON() {
+		StringBuilder json = new StringBuilder();
+		json.append("{\n  \"root\": {");
+		json.append("\"upperBound\": ").append(number(upperBound));
+		json.append(", \"greedy\": ").append(number(greedyScore));
+		json.append(", \"estimate\": ").append(number(estimatedScore));
+		json.append(", \"exact\": ").append(number(exactScore));
+		json.append("},\n  \"passes\": {");
+		for (int i = 0; i < PASSES.length; i++) {
+			json.append(i == 0 ? "\n" : ",\n");
+			json.append("    \"").append(PASSES[i]).append("\": {");
+			json.append("\"verticesExpanded\": ").append(verticesExpanded.get(i));
+			json.append(", \"verticesPruned\": ").append(verticesPruned.get(i));
+			json.append(", \"pairsEvaluated\": ").append(pairsEvaluated.get(i));
+			json.append(", \"pairsPruned\": ").append(pairsPruned.get(i));
+			json.append(", \"weightQueries\": ").append(weightQueries.get(i));
+			json.append(", \"weightsComputed\": ").append(weightsComputed.get(i));
+			json.append(", \"seconds\": ").append(nanos.get(i) / 1e9);
+			json.append("}");
+		}
+		json.append("\n  }\n}\n");
+		return json.toString();
+	}
+
+	/**
+	 * JSON has no NaN or infinity; those are written as null
+	 */
+	private static String number(double value) {
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			return "null";
+		}
+		return value == Math.rint(value) ? Long.toString((long) value) : Double.toString(value);
+	}
+}
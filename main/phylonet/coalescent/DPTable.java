@@ -0,0 +1,380 @@
+package phylonet.coalescent;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import phylonet.coalescent.IClusterCollection.VertexPair;
+import phylonet.tree.model.sti.STITreeCluster.Vertex;
+
+/**
+ * The state of the dynamic programming for every vertex, kept in primitive
+ * arrays indexed by vertex ID instead of in fields of each vertex.
+ * For each vertex, the table keeps:
+ *   -- The score of the best resolution (max score), its estimate,
+ *      and its upper bound
+ *   -- The best resolution (IDs of the left and right children) and its weight
+ *   -- How far the vertex has been processed (done), one of
+ *      NOT_DONE, UPPER_BOUND, ESTIMATED, and DONE
+ *   -- Resolutions saved between passes of the DP
+ *
+ * Saved resolutions are packed into primitive arrays (child IDs, weights,
+ * and upper bounds) and can be bounded to a number of bytes. Lists that
+ * do not fit are dropped and built again by the pass that needs them.
+ *
+ * Arrays are made of fixed-size blocks that never move, so growing the table
+ * does not copy or lose values written by other threads. IDs are given
+ * to vertices when they are registered; vertices of the search space are
+ * registered before the DP starts, and vertices made during the DP are
+ * registered when first used. As with the DP itself, two threads never
+ * use the same vertex at the same time, and fork/join provides the
+ * needed memory visibility.
+ *
+ * @author smirarab
+ *
+ */
+final class DPTable {
+
+	static final byte NOT_DONE = 0, UPPER_BOUND = 1, ESTIMATED = 2, DONE = 3;
+
+	private static final int BLOCK_BITS = 14;
+	private static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+	private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+	private static final int NONE = -1;
+
+	private volatile Vertex[][] vertices = new Vertex[0][];
+	private volatile double[][] maxScore = new double[0][];
+	private volatile double[][] estimated = new double[0][];
+	private volatile double[][] upperBound = new double[0][];
+	private volatile double[][] weight = new double[0][];
+	private volatile int[][] left = new int[0][];
+	private volatile int[][] right = new int[0][];
+	private volatile byte[][] done = new byte[0][];
+	private volatile Object[][] resolutions = new Object[0][];
+	private volatile int size = 0;
+
+	/**
+	 * Marks resolutions that were dropped because they did not fit
+	 */
+	private static final Object DROPPED = new Object();
+	private final long maxResolutionBytes;
+	private final AtomicLong resolutionBytes = new AtomicLong();
+	private final AtomicLong reused = new AtomicLong(), rebuilt = new AtomicLong(),
+			dropped = new AtomicLong();
+
+	/**
+	 * Resolutions of one vertex, in their order
+	 */
+	private static final class PackedResolutions {
+		final int[] children;
+		final double[] weights;
+		final double[] upperbounds;
+		final long bytes;
+
+		PackedResolutions(int count) {
+			children = new int[2 * count];
+			weights = new double[count];
+			upperbounds = new double[count];
+			bytes = bytes(count);
+		}
+
+		static long bytes(int count) {
+			return 64 + count * (2 * 4 + 2 * 8);
+		}
+	}
+
+	DPTable() {
+		this(0);
+	}
+
+	/**
+	 * @param maxResolutionBytes bound on the size of saved resolutions;
+	 * 	zero for no bound
+	 */
+	DPTable(long maxResolutionBytes) {
+		this.maxResolutionBytes = maxResolutionBytes;
+	}
+
+	/**
+	 * Registers all vertices of a collection and of its sub-collections
+	 */
+	void registerAll(IClusterCollection clusters) {
+		for (Iterable<Vertex> vs : clusters.getSubClusters()) {
+			for (Vertex vertex : vs) {
+				id(vertex);
+			}
+		}
+		id(clusters.getTopVertex());
+	}
+
+	/**
+	 * @return the ID of the vertex in this table;
+	 * 	the vertex is registered if it is not already
+	 */
+	int id(Vertex v) {
+		int id = v.getId();
+		if (id >= 0 && id < size && vertices[id >>> BLOCK_BITS][id & BLOCK_MASK] == v) {
+			return id;
+		}
+		return register(v);
+	}
+
+	private synchronized int register(Vertex v) {
+		int id = v.getId();
+		if (id >= 0 && id < size && vertices[id >>> BLOCK_BITS][id & BLOCK_MASK] == v) {
+			return id;
+		}
+		id = size;
+		if ((id >>> BLOCK_BITS) == vertices.length) {
+			addBlock();
+		}
+		vertices[id >>> BLOCK_BITS][id & BLOCK_MASK] = v;
+		v.setId(id);
+		size = id + 1;
+		return id;
+	}
+
+	private void addBlock() {
+		int n = vertices.length + 1;
+		Vertex[][] vertices = Arrays.copyOf(this.vertices, n);
+		vertices[n - 1] = new Vertex[BLOCK_SIZE];
+		double[][] maxScore = Arrays.copyOf(this.maxScore, n);
+		maxScore[n - 1] = filled(Integer.MIN_VALUE);
+		double[][] estimated = Arrays.copyOf(this.estimated, n);
+		estimated[n - 1] = filled(Integer.MIN_VALUE);
+		double[][] upperBound = Arrays.copyOf(this.upperBound, n);
+		upperBound[n - 1] = filled(Integer.MAX_VALUE);
+		double[][] weight = Arrays.copyOf(this.weight, n);
+		weight[n - 1] = new double[BLOCK_SIZE];
+		int[][] left = Arrays.copyOf(this.left, n);
+		left[n - 1] = new int[BLOCK_SIZE];
+		Arrays.fill(left[n - 1], NONE);
+		int[][] right = Arrays.copyOf(this.right, n);
+		right[n - 1] = new int[BLOCK_SIZE];
+		Arrays.fill(right[n - 1], NONE);
+		byte[][] done = Arrays.copyOf(this.done, n);
+		done[n - 1] = new byte[BLOCK_SIZE];
+		Object[][] resolutions = Arrays.copyOf(this.resolutions, n);
+		resolutions[n - 1] = new Object[BLOCK_SIZE];
+
+		this.maxScore = maxScore;
+		this.estimated = estimated;
+		this.upperBound = upperBound;
+		this.weight = weight;
+		this.left = left;
+		this.right = right;
+		this.done = done;
+		this.resolutions = resolutions;
+		this.vertices = vertices;
+	}
+
+	private static double[] filled(double value) {
+		double[] ret = new double[BLOCK_SIZE];
+		Arrays.fill(ret, value);
+		return ret;
+	}
+
+	/**
+	 * @return the number of registered vertices
+	 */
+	int size() {
+		return size;
+	}
+
+	Vertex vertex(int id) {
+		return id == NONE ? null : vertices[id >>> BLOCK_BITS][id & BLOCK_MASK];
+	}
+
+	double getMaxScore(Vertex v) {
+		int id = id(v);
+		return maxScore[id >>> BLOCK_BITS][id & BLOCK_MASK];
+	}
+
+	void setMaxScore(Vertex v, double score) {
+		int id = id(v);
+		maxScore[id >>> BLOCK_BITS][id & BLOCK_MASK] = score;
+	}
+
+	double getEstimated(Vertex v) {
+		int id = id(v);
+		return estimated[id >>> BLOCK_BITS][id & BLOCK_MASK];
+	}
+
+	void setEstimated(Vertex v, double score) {
+		int id = id(v);
+		estimated[id >>> BLOCK_BITS][id & BLOCK_MASK] = score;
+	}
+
+	double getUpperBound(Vertex v) {
+		int id = id(v);
+		return upperBound[id >>> BLOCK_BITS][id & BLOCK_MASK];
+	}
+
+	void setUpperBound(Vertex v, double score) {
+		int id = id(v);
+		upperBound[id >>> BLOCK_BITS][id & BLOCK_MASK] = score;
+	}
+
+	/**
+	 * @return the weight of the best resolution
+	 */
+	double getWeight(Vertex v) {
+		int id = id(v);
+		return weight[id >>> BLOCK_BITS][id & BLOCK_MASK];
+	}
+
+	Vertex getLeft(Vertex v) {
+		int id = id(v);
+		return vertex(left[id >>> BLOCK_BITS][id & BLOCK_MASK]);
+	}
+
+	Vertex getRight(Vertex v) {
+		int id = id(v);
+		return vertex(right[id >>> BLOCK_BITS][id & BLOCK_MASK]);
+	}
+
+	/**
+	 * Sets the best resolution of v; children can be null
+	 */
+	void setResolution(Vertex v, Vertex l, Vertex r, double w) {
+		int id = id(v);
+		int b = id >>> BLOCK_BITS, i = id & BLOCK_MASK;
+		left[b][i] = l == null ? NONE : id(l);
+		right[b][i] = r == null ? NONE : id(r);
+		weight[b][i] = w;
+	}
+
+	byte getDone(Vertex v) {
+		int id = id(v);
+		return done[id >>> BLOCK_BITS][id & BLOCK_MASK];
+	}
+
+	void setDone(Vertex v, byte state) {
+		int id = id(v);
+		done[id >>> BLOCK_BITS][id & BLOCK_MASK] = state;
+	}
+
+	/**
+	 * @return resolutions saved for v, or null if there are none
+	 */
+	ArrayList<VertexPair> getResolutions(Vertex v) {
+		int id = id(v);
+		Object saved = resolutions[id >>> BLOCK_BITS][id & BLOCK_MASK];
+		if (saved == DROPPED) {
+			rebuilt.incrementAndGet();
+			return null;
+		}
+		if (saved == null) {
+			return null;
+		}
+		reused.incrementAndGet();
+		PackedResolutions packed = (PackedResolutions) saved;
+		ArrayList<VertexPair> ret = new ArrayList<VertexPair>(packed.weights.length);
+		for (int i = 0; i < packed.weights.length; i++) {
+			VertexPair bi = new VertexPair(vertex(packed.children[2 * i]),
+					vertex(packed.children[2 * i + 1]), v);
+			bi.weight = packed.weights[i];
+			bi.upperbound = packed.upperbounds[i];
+			ret.add(bi);
+		}
+		return ret;
+	}
+
+	/**
+	 * Saves resolutions of v, if they fit.
+	 * @param list the resolutions, or null to release saved resolutions
+	 */
+	void setResolutions(Vertex v, ArrayList<VertexPair> list) {
+		int id = id(v);
+		int b = id >>> BLOCK_BITS, i = id & BLOCK_MASK;
+		Object saved = resolutions[b][i];
+		if (saved instanceof PackedResolutions) {
+			resolutionBytes.addAndGet(-((PackedResolutions) saved).bytes);
+		}
+		if (list == null) {
+			resolutions[b][i] = null;
+			return;
+		}
+		long bytes = PackedResolutions.bytes(list.size());
+		if (resolutionBytes.addAndGet(bytes) > maxResolutionBytes
+				&& maxResolutionBytes > 0) {
+			resolutionBytes.addAndGet(-bytes);
+			dropped.incrementAndGet();
+			resolutions[b][i] = DROPPED;
+			return;
+		}
+		PackedResolutions packed = new PackedResolutions(list.size());
+		int j = 0;
+		for (VertexPair bi : list) {
+			packed.children[2 * j] = id(bi.cluster1);
+			packed.children[2 * j + 1] = id(bi.cluster2);
+			packed.weights[j] = bi.weight;
+			packed.upperbounds[j] = bi.upperbound;
+			j++;
+		}
+		resolutions[b][i] = packed;
+	}
+
+	/**
+	 * Writes resolutions saved for the vertex with the given ID, with
+	 * children as IDs of this table; see readResolutions
+	 */
+	void writeResolutions(DataOutputStream out, int id) throws IOException {
+		Object saved = resolutions[id >>> BLOCK_BITS][id & BLOCK_MASK];
+		if (!(saved instanceof PackedResolutions)) {
+			out.writeInt(-1);
+			return;
+		}
+		PackedResolutions packed = (PackedResolutions) saved;
+		out.writeInt(packed.weights.length);
+		for (int i = 0; i < packed.weights.length; i++) {
+			out.writeInt(packed.children[2 * i]);
+			out.writeInt(packed.children[2 * i + 1]);
+			out.writeDouble(packed.weights[i]);
+			out.writeDouble(packed.upperbounds[i]);
+		}
+	}
+
+	/**
+	 * Saves resolutions of v written by writeResolutions
+	 * @param vertices the vertex of each ID of the table that wrote them
+	 */
+	void readResolutions(DataInputStream in, Vertex v, Vertex[] vertices) throws IOException {
+		int count = in.readInt();
+		if (count < 0) {
+			return;
+		}
+		ArrayList<VertexPair> list = new ArrayList<VertexPair>(count);
+		for (int i = 0; i < count; i++) {
+			VertexPair bi = new VertexPair(vertices[in.readInt()], vertices[in.readInt()], v);
+			bi.weight = in.readDouble();
+			bi.upperbound = in.readDouble();
+			list.add(bi);
+		}
+		setResolutions(v, list);
+	}
+
+	/**
+	 * Skips resolutions written by writeResolutions
+	 */
+	static void skipResolutions(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			in.readInt();
+			in.readInt();
+			in.readDouble();
+			in.readDouble();
+		}
+	}
+
+	/**
+	 * A short summary of saved resolutions for progress messages
+	 */
+	String resolutionStatistics() {
+		return "Resolution lists reused: " + reused.get() + ", rebuilt: " + rebuilt.get()
+				+ ", dropped: " + dropped.get();
+	}
+}
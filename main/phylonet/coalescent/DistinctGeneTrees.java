@@ -0,0 +1,188 @@
+package phylonet.coalescent;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import phylonet.tree.model.TNode;
+import phylonet.tree.model.Tree;
+
+/**
+ * Gene trees with the same topology, kept once with their number of copies.
+ * Bootstrap and posterior samples often repeat topologies; all passes over
+ * gene trees (weights, distances, greedy consensus, completion, and branch
+ * support) visit each distinct topology once and multiply by its count.
+ *
+ * Topologies are compared by canonical IDs: unrooted trees are rooted
+ * at their smallest leaf name, and each subtree gets the ID of its leaf
+ * name or of the sorted IDs of its children, so that two subtrees get the
+ * same ID exactly when they have the same topology. Nodes of degree two
+ * are ignored, and so are branch lengths and supports. IDs are computed
+ * bottom-up without recursion, so deep (caterpillar) trees take linear
+ * time and stack space.
+ *
+ * @author smirarab
+ *
+ */
+final class DistinctGeneTrees {
+
+	private final List<Tree> trees = new ArrayList<Tree>();
+	private final int[] weights;
+	/**
+	 * IDs of leaf names and of the sorted child IDs of internal nodes
+	 */
+	private final HashMap<String, Integer> leafIds = new HashMap<String, Integer>();
+	private final HashMap<Children, Integer> nodeIds = new HashMap<Children, Integer>();
+
+	/**
+	 * @param input gene trees; the first tree of each topology is kept
+	 * @param rooted whether gene trees are rooted
+	 */
+	DistinctGeneTrees(List<Tree> input, boolean rooted) {
+		HashMap<Integer, Integer> index = new HashMap<Integer, Integer>();
+		int[] counts = new int[input.size()];
+		for (Tree tree : input) {
+			Integer key = canonical(rooted ? tree.getRoot() : smallestLeaf(tree));
+			Integer i = index.get(key);
+			if (i == null) {
+				i = trees.size();
+				index.put(key, i);
+				trees.add(tree);
+			}
+			counts[i]++;
+		}
+		weights = new int[trees.size()];
+		System.arraycopy(counts, 0, weights, 0, weights.length);
+	}
+
+	/**
+	 * @return one tree for each distinct topology, in the order of first appearance
+	 */
+	List<Tree> getTrees() {
+		return trees;
+	}
+
+	/**
+	 * @return the number of copies of each tree of getTrees()
+	 */
+	int[] getWeights() {
+		return weights;
+	}
+
+	private static TNode smallestLeaf(Tree tree) {
+		TNode ret = null;
+		for (TNode node : tree.postTraverse()) {
+			if (node.isLeaf() && (ret == null || node.getName().compareTo(ret.getName()) < 0)) {
+				ret = node;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * The canonical ID of the tree seen from start, with edges pointing
+	 * away from start
+	 */
+	private int canonical(TNode start) {
+		// Nodes in preorder, each with the neighbor it was reached from
+		List<TNode> order = new ArrayList<TNode>();
+		HashMap<TNode, TNode> from = new HashMap<TNode, TNode>();
+		ArrayDeque<TNode> stack = new ArrayDeque<TNode>();
+		from.put(start, null);
+		stack.push(start);
+		while (!stack.isEmpty()) {
+			TNode node = stack.pop();
+			order.add(node);
+			for (TNode next : neighbors(node, from.get(node))) {
+				from.put(next, node);
+				stack.push(next);
+			}
+		}
+		HashMap<TNode, Integer> ids = new HashMap<TNode, Integer>();
+		for (int i = order.size() - 1; i >= 0; i--) {
+			TNode node = order.get(i);
+			List<TNode> next = neighbors(node, from.get(node));
+			int[] parts = new int[next.size()];
+			for (int j = 0; j < parts.length; j++) {
+				parts[j] = ids.get(next.get(j));
+			}
+			int id;
+			if (node.isLeaf()) {
+				id = leafId(node.getName());
+				if (parts.length != 0) {
+					// The starting leaf of an unrooted tree; -1 marks it apart
+					// from internal nodes, whose IDs are not negative
+					id = nodeId(new int[] { -1, id, parts[0] });
+				}
+			} else if (parts.length == 1) {
+				id = parts[0];
+			} else {
+				Arrays.sort(parts);
+				id = nodeId(parts);
+			}
+			ids.put(node, id);
+		}
+		return ids.get(start);
+	}
+
+	/**
+	 * @return the children and the parent of node, except for from
+	 */
+	private static List<TNode> neighbors(TNode node, TNode from) {
+		List<TNode> ret = new ArrayList<TNode>();
+		for (TNode child : node.getChildren()) {
+			if (child != from) {
+				ret.add(child);
+			}
+		}
+		TNode parent = node.getParent();
+		if (parent != null && parent != from) {
+			ret.add(parent);
+		}
+		return ret;
+	}
+
+	private int leafId(String name) {
+		Integer id = leafIds.get(name);
+		if (id == null) {
+			id = leafIds.size() + nodeIds.size();
+			leafIds.put(name, id);
+		}
+		return id;
+	}
+
+	private int nodeId(int[] parts) {
+		Children key = new Children(parts);
+		Integer id = nodeIds.get(key);
+		if (id == null) {
+			id = leafIds.size() + nodeIds.size();
+			nodeIds.put(key, id);
+		}
+		return id;
+	}
+
+	/**
+	 * Sorted child IDs, compared by value
+	 */
+	private static final class Children {
+		private final int[] ids;
+		private final int hash;
+
+		Children(int[] ids) {
+			this.ids = ids;
+			this.hash = Arrays.hashCode(ids);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Children && Arrays.equals(ids, ((Children) o).ids);
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package phylonet.coalescent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import phylonet.tree.model.TMutableNode;
+import phylonet.tree.model.TNode;
+import phylonet.tree.model.Tree;
+import phylonet.tree.model.sti.STINode;
+import phylonet.tree.model.sti.STITree;
+
+/**
+ * Gene trees encoded as a read-only list of integers in post order.
+ * Leaves are given by their taxon ID (a non-negative number)
+ * and internal nodes by minus their number of children.
+ * DELIMITER is added after the root of each gene tree.
+ *
+ * The encoding is built once and shared by all code that traverses
+ * gene trees for weights or scores.
+ *
+ * @author smirarab
+ *
+ */
+final class EncodedGeneTrees {
+
+	/**
+	 * Marks the end of a gene tree
+	 */
+	static final int DELIMITER = Integer.MIN_VALUE;
+
+	private final int[] encoding;
+
+	/**
+	 * Note that gene trees are rerooted and made left-heavy so that
+	 * the stack needed for traversing them gets small.
+	 */
+	EncodedGeneTrees(List<Tree> trees) {
+		// Rerooting can change node counts; the array grows if needed
+		int size = 0;
+		for (Tree tr : trees) {
+			size += tr.getNodeCount() + 1;
+		}
+		int[] temp = new int[size];
+		int pos = 0;
+		for (Tree tr : trees) {
+			List<STINode> children = new ArrayList<STINode>();
+			int n = tr.getLeafCount()/2;
+			int dist = n;
+			TNode newroot = tr.getRoot();
+			for (TNode node : tr.postTraverse()) {
+				if (!node.isLeaf()) {
+					for (TNode child : node.getChildren()) {
+						if (child.isLeaf()) {
+							children.add((STINode) child);
+							break;
+						}
+					}
+					if (Math.abs(n - node.getLeafCount()) < dist) {
+						newroot = node;
+						dist = n - node.getLeafCount();
+					}
+				}
+			}
+			// Make the tree left-heavy so that the stack gets small
+			for (STINode child: children) {
+					STINode snode = child.getParent();
+					snode.removeChild((TMutableNode) child, false);
+					TMutableNode newChild = snode.createChild(child);
+					if (child == newroot) {
+						newroot = newChild;
+					}
+			}
+			if (newroot != tr.getRoot()){
+				((STITree)(tr)).rerootTreeAtEdge(newroot);
+			}
+			for (TNode node : tr.postTraverse()) {
+				if (pos + 1 >= temp.length) {
+					temp = Arrays.copyOf(temp, temp.length * 2 + 2);
+				}
+				if (node.isLeaf()) {
+					temp[pos++] = GlobalMaps.taxonIdentifier.taxonId(node.getName());
+				} else {
+					temp[pos++] = -node.getChildCount();
+				}
+				if (node.isRoot()) {
+					temp[pos++] = DELIMITER;
+				}
+			}
+		}
+		this.encoding = pos == temp.length ? temp : Arrays.copyOf(temp, pos);
+	}
+
+	/**
+	 * @return the number of integers in the encoding
+	 */
+	int length() {
+		return encoding.length;
+	}
+
+	/**
+	 * @return the i'th integer of the encoding
+	 */
+	int get(int i) {
+		return encoding[i];
+	}
+}
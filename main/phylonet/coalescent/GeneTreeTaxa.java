@@ -0,0 +1,118 @@
+package phylonet.coalescent;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map.Entry;
+
+import phylonet.tree.model.sti.STITreeCluster;
+import phylonet.util.BitSet;
+
+/**
+ * The taxa present in each gene tree, grouped so that intersections with
+ * the sides of a query are computed once per distinct set of taxa
+ * rather than once per gene tree.
+ *   -- Complete gene trees (with no missing taxa) share one group; their
+ *      intersections are simply the sizes of the sides.
+ *   -- Gene trees missing the same taxa share one group, whose set of
+ *      taxa is intersected once per query.
+ *
+ * Groups are numbered from 0; the last group is that of complete trees.
+ * Query results are written to a sizes array with one row of
+ * sides.length ints per group (see newSizes).
+ *
+ * @author smirarab
+ *
+ */
+final class GeneTreeTaxa {
+
+	/**
+	 * For each gene tree, the index of its group
+	 */
+	private final int[] group;
+	/**
+	 * Taxa of each group except the last (complete trees)
+	 */
+	private final BitSet[] masks;
+	/**
+	 * Number of taxa in each group
+	 */
+	private final int[] taxonCount;
+
+	/**
+	 * @param treeAllClusters the taxa present in each gene tree, in order
+	 */
+	GeneTreeTaxa(List<STITreeCluster> treeAllClusters) {
+		int n = GlobalMaps.taxonIdentifier.taxonCount();
+		HashMap<BitSet, Integer> groups = new HashMap<BitSet, Integer>();
+		group = new int[treeAllClusters.size()];
+		int t = 0;
+		for (STITreeCluster all : treeAllClusters) {
+			BitSet bs = all.getBitSet();
+			if (bs.cardinality() == n) {
+				group[t++] = -1;
+				continue;
+			}
+			Integer g = groups.get(bs);
+			if (g == null) {
+				g = groups.size();
+				groups.put(bs, g);
+			}
+			group[t++] = g;
+		}
+		masks = new BitSet[groups.size()];
+		taxonCount = new int[masks.length + 1];
+		for (Entry<BitSet, Integer> e : groups.entrySet()) {
+			masks[e.getValue()] = e.getKey();
+			taxonCount[e.getValue()] = e.getKey().cardinality();
+		}
+		taxonCount[masks.length] = n;
+		for (t = 0; t < group.length; t++) {
+			if (group[t] == -1) {
+				group[t] = masks.length;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of distinct sets of taxa other than the complete set
+	 */
+	int incompleteGroupCount() {
+		return masks.length;
+	}
+
+	/**
+	 * @return the group of the t-th gene tree
+	 */
+	int group(int t) {
+		return group[t];
+	}
+
+	/**
+	 * @return the number of taxa of gene trees in group g
+	 */
+	int taxonCount(int g) {
+		return taxonCount[g];
+	}
+
+	/**
+	 * @return an array large enough for intersectionSizes with the given number of sides
+	 */
+	int[] newSizes(int sides) {
+		return new int[(masks.length + 1) * sides];
+	}
+
+	/**
+	 * Intersects each side with the taxa of each group. The size of
+	 * sides[x] restricted to the taxa of group g is written to
+	 * sizes[g * sides.length + x].
+	 */
+	void intersectionSizes(BitSet[] sides, int[] sizes) {
+		int n = sides.length;
+		for (int g = 0; g < masks.length; g++) {
+			masks[g].intersectionSizes(sides, sizes, g * n);
+		}
+		for (int x = 0, c = masks.length * n; x < n; x++) {
+			sizes[c + x] = sides[x].cardinality();
+		}
+	}
+}
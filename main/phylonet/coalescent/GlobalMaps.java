@@ -1,6 +1,7 @@
 package phylonet.coalescent;
 
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Global singelton classes
@@ -21,4 +22,22 @@ public class GlobalMaps{
 	 * Random number generator
 	 */
 	public static Random random;
+	
+	private static ForkJoinPool pool;
+	
+	/**
+	 * Worker threads shared by everything that runs in parallel (the DP and
+	 * traversals of polytree segments), so that at most the given number of
+	 * threads work at once. Created on first use and kept until the JVM exits
+	 * (workers are daemon threads).
+	 */
+	public static synchronized ForkJoinPool pool(int threads) {
+		if (pool == null || pool.getParallelism() != threads) {
+			if (pool != null) {
+				pool.shutdown();
+			}
+			pool = new ForkJoinPool(threads);
+		}
+		return pool;
+	}
 }
\ No newline at end of file
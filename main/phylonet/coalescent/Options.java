@@ -25,6 +25,18 @@ public class Options {
 	private Integer minLeaves;
 	private Integer geneRepeat;
 	private boolean removeExtraTree;
+	private int threads = 1;
+	private int weightCacheMB = 0;
+	private int resolutionCacheMB = 0;
+	private String dpStatisticsFile = null;
+	private String anytimeFile = null;
+	private double timeBudget = 0;
+	private boolean bottomUpDP = false;
+	private String saveSearchSpaceFile = null;
+	private String loadSearchSpaceFile = null;
+	private String checkpointDirectory = null;
+	private double checkpointInterval = 30;
+	private boolean resume = false;
 	
 
 	public Options(boolean rooted, boolean extrarooted, 
@@ -230,4 +242,103 @@ public class Options {
 	public void setGeneRepeat(Integer geneRepeat) {
 		this.geneRepeat = geneRepeat;
 	}
-}
\ No newline at end of file
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	public int getWeightCacheMB() {
+		return weightCacheMB;
+	}
+
+	public void setWeightCacheMB(int weightCacheMB) {
+		this.weightCacheMB = weightCacheMB;
+	}
+
+	public int getResolutionCacheMB() {
+		return resolutionCacheMB;
+	}
+
+	public void setResolutionCacheMB(int resolutionCacheMB) {
+		this.resolutionCacheMB = resolutionCacheMB;
+	}
+
+	public String getDPStatisticsFile() {
+		return dpStatisticsFile;
+	}
+
+	public void setDPStatisticsFile(String dpStatisticsFile) {
+		this.dpStatisticsFile = dpStatisticsFile;
+	}
+
+	public String getAnytimeFile() {
+		return anytimeFile;
+	}
+
+	public void setAnytimeFile(String anytimeFile) {
+		this.anytimeFile = anytimeFile;
+	}
+
+	public double getTimeBudget() {
+		return timeBudget;
+	}
+
+	public void setTimeBudget(double timeBudget) {
+		this.timeBudget = timeBudget;
+	}
+
+	public boolean isBottomUpDP() {
+		return bottomUpDP;
+	}
+
+	public void setBottomUpDP(boolean bottomUpDP) {
+		this.bottomUpDP = bottomUpDP;
+	}
+
+	public String getSaveSearchSpaceFile() {
+		return saveSearchSpaceFile;
+	}
+
+	public void setSaveSearchSpaceFile(String saveSearchSpaceFile) {
+		this.saveSearchSpaceFile = saveSearchSpaceFile;
+	}
+
+	public String getLoadSearchSpaceFile() {
+		return loadSearchSpaceFile;
+	}
+
+	public void setLoadSearchSpaceFile(String loadSearchSpaceFile) {
+		this.loadSearchSpaceFile = loadSearchSpaceFile;
+	}
+
+	public String getCheckpointDirectory() {
+		return checkpointDirectory;
+	}
+
+	public void setCheckpointDirectory(String checkpointDirectory) {
+		this.checkpointDirectory = checkpointDirectory;
+	}
+
+	/**
+	 * @return minutes between two checkpoints of the DP
+	 */
+	public double getCheckpointInterval() {
+		return checkpointInterval;
+	}
+
+	public void setCheckpointInterval(double checkpointInterval) {
+		this.checkpointInterval = checkpointInterval;
+	}
+
+	public boolean isResume() {
+		return resume;
+	}
+
+	public void setResume(boolean resume) {
+		this.resume = resume;
+	}
+}
@@ -1,9 +1,13 @@
 package phylonet.coalescent;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 import phylonet.coalescent.WQWeightCalculator.CondensedTraversalWeightCalculator;
 import phylonet.tree.model.TNode;
@@ -12,10 +16,16 @@ import phylonet.tree.model.sti.STITreeCluster;
 import phylonet.util.BitSet;
 
 public class Polytree {
-	static long time = 0;
+	/**
+	 * Total time spent in queries, in nanoseconds
+	 */
+	static final AtomicLong time = new AtomicLong(0);
 	
 	static long F(int[] x, int[] y, int[] z){
-		long a = x[0], b = x[1], c = x[2], d = y[0], e = y[1], f = y[2], g = z[0], h = z[1], i = z[2];
+		return F(x[0], x[1], x[2], y[0], y[1], y[2], z[0], z[1], z[2]);
+	}
+	
+	static long F(long a, long b, long c, long d, long e, long f, long g, long h, long i){
 		return a * ( (a + e + i - 3l)  * e * i + (a + f + h - 3l)  * f * h )
 			 + b * ((b + d + i - 3l)  * d * i + (b + f + g - 3l)  * f * g )
 			 + c * ((c + d + h - 3l)  * d * h + (c + e + g - 3l)  * e * g );
@@ -59,7 +69,7 @@ public class Polytree {
 				AbstractPartition p = AbstractPartition.createPartition(cs);
 				if (Polytree.this.partitions.containsKey(p)){
 					partition = Polytree.this.partitions.get(p);
-					partition.cnt++;
+					partition.cnt += buildWeight;
 				}
 				else partition = new PTPartition(p, this);
 			}
@@ -175,36 +185,179 @@ public class Polytree {
 	
 	final class PTPartition{
 		PTNode firstNode;
-		int cnt = 1;
+		int cnt;
 		
 		PTPartition(AbstractPartition p, PTNode n){
 			firstNode = n;
+			cnt = buildWeight;
 			Polytree.this.partitions.put(p, this);
 		}
 	}
 	
-	WQDataCollection dataCollection;
+	/**
+	 * The taxa present in each gene tree
+	 */
+	List<STITreeCluster> treeAllClusters;
+	/**
+	 * The same, grouped by distinct sets of taxa
+	 */
+	GeneTreeTaxa treeTaxa;
+	/**
+	 * The number of copies of each gene tree
+	 */
+	int[] treeWeights;
+	/**
+	 * The number of copies of the gene tree being added by build
+	 */
+	private int buildWeight;
 	HashMap<STITreeCluster, PTCluster> clusters = new HashMap<STITreeCluster, PTCluster>();	
 	HashMap<AbstractPartition, PTPartition> partitions = new HashMap<AbstractPartition, PTPartition>();
 	ArrayList<PTNode> nodeRoots = new ArrayList<PTNode>();
 	ArrayList<Integer> queueBuilder = new ArrayList<Integer>();
-	int[][] stack, list;
 	int[] queue;
 	int listSize = 0;
-	long[] sx = new long[3], sxy = new long[3];
-	int[] treeTotal = new int[3];
 	long maxScore = 0;
 	
+	/**
+	 * The number of tripartitions scored by one pass of WQWeightsByTraversal
+	 */
+	static final int BATCH_SIZE = 8;
+	
+	/**
+	 * Space used by traversals. Once built, a polytree is not changed by
+	 * queries; each thread traverses it using its own scratch space, and so
+	 * queries can be answered concurrently. A thread runs one traversal at a
+	 * time, so segments share the scratch space of their parent; it grows to
+	 * fit the largest segment instead of being allocated once per segment.
+	 */
+	static final class Scratch{
+		int[][] stack = new int[GlobalMaps.taxonIdentifier.taxonCount() + 1][3];
+		int[][] list = new int[0][3];
+		long[] sx = new long[3], sxy = new long[3];
+		int[] treeTotal = new int[3];
+		/**
+		 * Sizes of query sides restricted to each group of treeTaxa
+		 */
+		int[] groupSizes = new int[0], groupUpperbound = new int[0];
+		/**
+		 * Used by batch traversals. For a batch of K tripartitions, each stack
+		 * or list entry takes 3 * K ints: K counts for each of the three sides.
+		 */
+		int[] batchStack, batchList = new int[0], batchGroupSizes = new int[0];
+		
+		/**
+		 * Grows the space used by single traversals to fit a polytree
+		 */
+		Scratch fit(Polytree p){
+			if (list.length < p.listSize) list = new int[p.listSize][3];
+			if (groupUpperbound.length < p.groupSlots){
+				groupSizes = new int[p.groupSlots * 3];
+				groupUpperbound = new int[p.groupSlots];
+			}
+			return this;
+		}
+		
+		/**
+		 * Grows the space used by batch traversals to fit a polytree
+		 */
+		Scratch fitBatch(Polytree p){
+			if (batchStack == null){
+				batchStack = new int[(GlobalMaps.taxonIdentifier.taxonCount() + 1) * 3 * BATCH_SIZE];
+			}
+			if (batchList.length < p.listSize * 3 * BATCH_SIZE) batchList = new int[p.listSize * 3 * BATCH_SIZE];
+			if (batchGroupSizes.length < p.groupSlots * 3 * BATCH_SIZE){
+				batchGroupSizes = new int[p.groupSlots * 3 * BATCH_SIZE];
+			}
+			return this;
+		}
+	}
+	
+	/**
+	 * Shared by a polytree and its segments
+	 */
+	final ThreadLocal<Scratch> scratch;
+	/**
+	 * Entries per side in the arrays given to treeTaxa.intersectionSizes
+	 */
+	int groupSlots;
+	
+	/**
+	 * Each segment gets at least this many gene trees
+	 */
+	static final int MIN_SEGMENT_TREES = 100;
+	/**
+	 * Polytrees built for consecutive ranges of gene trees. When not null,
+	 * queries are answered by traversing all segments in parallel and
+	 * summing their weights; this polytree itself is then empty.
+	 */
+	Polytree[] segments;
+	/**
+	 * Threads of the shared pool (see GlobalMaps.pool) used for segments
+	 */
+	private int threads;
+	
 	public Polytree(List<Tree> trees, WQDataCollection dataCollection){
-		this.dataCollection = dataCollection;
+		this(trees, dataCollection, 1);
+	}
+	
+	/**
+	 * @param threads the number of gene tree segments traversed in parallel;
+	 * 	fewer segments are used if there are not enough gene trees. Segments
+	 * 	are compiled separately and so cost more work in total; use more than
+	 * 	one only when queries do not already come from parallel DP workers.
+	 */
+	public Polytree(List<Tree> trees, WQDataCollection dataCollection, int threads){
 		long t = System.currentTimeMillis();
+		this.scratch = new ThreadLocal<Scratch>(){
+			@Override
+			protected Scratch initialValue(){
+				return new Scratch();
+			}
+		};
+		this.treeAllClusters = dataCollection.treeAllClusters;
+		this.treeWeights = dataCollection.treeWeights;
+		int segmentCount = Math.min(threads, trees.size() / MIN_SEGMENT_TREES);
+		if (segmentCount > 1){
+			segments = new Polytree[segmentCount];
+			for (int i = 0; i < segmentCount; i++){
+				int from = trees.size() * i / segmentCount, to = trees.size() * (i + 1) / segmentCount;
+				segments[i] = new Polytree(trees.subList(from, to), treeAllClusters.subList(from, to),
+						Arrays.copyOfRange(treeWeights, from, to), scratch);
+			}
+			this.threads = threads;
+			System.err.println("Polytree is split into " + segmentCount + " segments of gene trees.");
+		}
+		else build(trees);
+
+		STITreeCluster c = (new STITreeCluster(GlobalMaps.taxonIdentifier)).complementaryCluster();
+		maxScore = WQWeightByTraversal(new Tripartition(c, c, c, false), null);
+		System.err.println("Polytree max score: " + maxScore / 4);
+		System.err.println("Polytree building time: " + (System.currentTimeMillis() - t) / 1000.0D + " seconds.");
+	}
+	
+	/**
+	 * Builds one segment
+	 */
+	private Polytree(List<Tree> trees, List<STITreeCluster> treeAllClusters, int[] treeWeights,
+			ThreadLocal<Scratch> scratch){
+		this.scratch = scratch;
+		this.treeAllClusters = treeAllClusters;
+		this.treeWeights = treeWeights;
+		build(trees);
+	}
+	
+	private void build(List<Tree> trees){
+		treeTaxa = new GeneTreeTaxa(treeAllClusters);
+		groupSlots = treeTaxa.newSizes(1).length;
 		for (int i = 0; i < GlobalMaps.taxonIdentifier.taxonCount(); i++){
 			STITreeCluster c = new STITreeCluster(GlobalMaps.taxonIdentifier);
 			c.getBitSet().set(i);
 			new PTCluster(c);
 		}
-		Iterator<STITreeCluster> tit = dataCollection.treeAllClusters.iterator();
+		Iterator<STITreeCluster> tit = treeAllClusters.iterator();
+		int t = 0;
 		for (Tree tr: trees){
+			buildWeight = treeWeights[t++];
 			nodeRoots.add(buildTree(tr.getRoot(), tit.next()));
 		}
 		for (PTNode n: nodeRoots){
@@ -215,17 +368,10 @@ public class Polytree {
 			n.buildQueue();
 		}
 		
-		stack = new int[GlobalMaps.taxonIdentifier.taxonCount() + 1][3];
-		list = new int[listSize][3];
 		queue = mapToInt(queueBuilder);
 		clusters = null;
 		partitions = null;
 		queueBuilder = null;
-
-		STITreeCluster c = (new STITreeCluster(GlobalMaps.taxonIdentifier)).complementaryCluster();
-		maxScore = WQWeightByTraversal(new Tripartition(c, c, c, false), null);
-		System.err.println("Polytree max score: " + maxScore / 4);
-		System.err.println("Polytree building time: " + (System.currentTimeMillis() - t) / 1000.0D + " seconds.");
 	}
 	
 	private int[] mapToInt(List<Integer> list) {
@@ -246,13 +392,41 @@ public class Polytree {
 		}
 	}
 
-	public Long WQWeightByTraversal(Tripartition trip, CondensedTraversalWeightCalculator algorithm){
+	public Long WQWeightByTraversal(final Tripartition trip, CondensedTraversalWeightCalculator algorithm){
 		if (trip.cluster1 == trip.cluster2) return computeUpperbound(trip.cluster1.getBitSet());
 		long t = System.nanoTime();
+		long weight;
+		if (segments == null) weight = traverse(trip);
+		else {
+			List<Callable<long[]>> tasks = new ArrayList<Callable<long[]>>();
+			for (final Polytree segment: segments){
+				tasks.add(new Callable<long[]>() {
+					@Override
+					public long[] call() {
+						return new long[]{segment.traverse(trip)};
+					}
+				});
+			}
+			weight = sumOverSegments(tasks, 1)[0];
+		}
+		time.addAndGet(System.nanoTime() - t);
+		return weight;
+	}
+	
+	/**
+	 * Computes the weight of a tripartition over the gene trees of this polytree
+	 */
+	private long traverse(Tripartition trip){
+		Scratch scratch = this.scratch.get().fit(this);
+		int[][] stack = scratch.stack, list = scratch.list;
+		long[] sx = scratch.sx, sxy = scratch.sxy;
+		int[] treeTotal = scratch.treeTotal;
 		long weight = 0;
 		int stackEnd = 0, listEnd = GlobalMaps.taxonIdentifier.taxonCount();
 		BitSet[] b = new BitSet[]{trip.cluster1.getBitSet(), trip.cluster2.getBitSet(), trip.cluster3.getBitSet()};
-		Iterator<STITreeCluster> tit = dataCollection.treeAllClusters.iterator();
+		int[] groupSizes = scratch.groupSizes;
+		treeTaxa.intersectionSizes(b, groupSizes);
+		int tree = 0;
 		for (int i = 0, i_end = GlobalMaps.taxonIdentifier.taxonCount(); i < i_end; i++){
 			list[i][0] = b[0].get(i) ? 1 : 0;
 			list[i][1] = b[1].get(i) ? 1 : 0;
@@ -261,10 +435,10 @@ public class Polytree {
 		for (int i = 0, i_end = queue.length; i < i_end; i++){
 			int cmd = queue[i];
 			if (cmd == -1) {
-				BitSet all = tit.next().getBitSet();
-				treeTotal[0] = b[0].intersectionSize(all);
-				treeTotal[1] = b[1].intersectionSize(all);
-				treeTotal[2] = b[2].intersectionSize(all);
+				int g = treeTaxa.group(tree++) * 3;
+				treeTotal[0] = groupSizes[g];
+				treeTotal[1] = groupSizes[g + 1];
+				treeTotal[2] = groupSizes[g + 2];
 				continue;
 			}
 			if ((cmd & 1) != 0){
@@ -331,15 +505,177 @@ public class Polytree {
 				q[2] = p[2];
 			}
 		}
-		time += System.nanoTime() - t;
 		return weight;
 	}
 	
-	public Long computeUpperbound(BitSet b){
+	/**
+	 * Computes the weights of up to BATCH_SIZE tripartitions in one pass over
+	 * the queue. Same as calling WQWeightByTraversal for each tripartition, but
+	 * the queue is decoded and intersections with tree clusters are done once per
+	 * batch, and the inner loops run over adjacent counts of all tripartitions.
+	 * @param trips tripartitions; the first count elements are used
+	 * @param weights receives the weight of trips[k] in weights[k]
+	 */
+	public void WQWeightsByTraversal(final Tripartition[] trips, final int count, long[] weights){
+		long t = System.nanoTime();
+		if (segments == null) traverse(trips, count, weights);
+		else {
+			List<Callable<long[]>> tasks = new ArrayList<Callable<long[]>>();
+			for (final Polytree segment: segments){
+				tasks.add(new Callable<long[]>() {
+					@Override
+					public long[] call() {
+						long[] segmentWeights = new long[count];
+						segment.traverse(trips, count, segmentWeights);
+						return segmentWeights;
+					}
+				});
+			}
+			System.arraycopy(sumOverSegments(tasks, count), 0, weights, 0, count);
+		}
+		time.addAndGet(System.nanoTime() - t);
+	}
+	
+	/**
+	 * Computes the weights of a batch of tripartitions over the gene trees of this polytree
+	 */
+	private void traverse(Tripartition[] trips, int count, long[] weights){
+		final int K = count, K3 = 3 * K;
+		Scratch scratch = this.scratch.get().fitBatch(this);
+		int[] stack = scratch.batchStack, list = scratch.batchList;
+		int[] total = new int[K3];
+		long[] sx = new long[K3], sxy = new long[K3], temp = new long[K], weight = new long[K];
+		int stackEnd = 0, listEnd = GlobalMaps.taxonIdentifier.taxonCount();
+		BitSet[] b = new BitSet[K3];
+		for (int k = 0; k < K; k++){
+			Tripartition trip = trips[k];
+			b[k] = trip.cluster1.getBitSet();
+			b[K + k] = trip.cluster2.getBitSet();
+			b[2 * K + k] = trip.cluster3.getBitSet();
+		}
+		int[] groupSizes = scratch.batchGroupSizes;
+		treeTaxa.intersectionSizes(b, groupSizes);
+		int tree = 0;
+		for (int i = 0, i_end = GlobalMaps.taxonIdentifier.taxonCount(); i < i_end; i++){
+			for (int x = 0; x < K3; x++){
+				list[i * K3 + x] = b[x].get(i) ? 1 : 0;
+			}
+		}
+		for (int i = 0, i_end = queue.length; i < i_end; i++){
+			int cmd = queue[i];
+			if (cmd == -1) {
+				System.arraycopy(groupSizes, treeTaxa.group(tree++) * K3, total, 0, K3);
+				continue;
+			}
+			if ((cmd & 1) != 0){
+				int numChildren = cmd >> 5;
+				int p = stackEnd * K3;
+				System.arraycopy(total, 0, stack, p, K3);
+				for (int j = stackEnd - numChildren; j < stackEnd; j++){
+					int q = j * K3;
+					for (int x = 0; x < K3; x++){
+						stack[p + x] -= stack[q + x];
+					}
+				}
+				if ((cmd & 8) != 0){
+					if (numChildren == 2){
+						int q = (stackEnd - 2) * K3, r = (stackEnd - 1) * K3;
+						for (int k = 0; k < K; k++){
+							temp[k] = F(stack[q + k], stack[q + K + k], stack[q + 2 * K + k],
+									stack[r + k], stack[r + K + k], stack[r + 2 * K + k],
+									stack[p + k], stack[p + K + k], stack[p + 2 * K + k]);
+						}
+					}
+					else{
+						for (int x = 0; x < K3; x++){
+							sx[x] = 0;
+							sxy[x] = 0;
+						}
+						for (int j = stackEnd - numChildren; j <= stackEnd; j++){
+							int q = j * K3;
+							for (int k = 0; k < K; k++){
+								int q0 = stack[q + k], q1 = stack[q + K + k], q2 = stack[q + 2 * K + k];
+								sx[k] += q0;
+								sx[K + k] += q1;
+								sx[2 * K + k] += q2;
+								sxy[k] += q1 * q2;
+								sxy[K + k] += q2 * q0;
+								sxy[2 * K + k] += q0 * q1;
+							}
+						}
+						for (int k = 0; k < K; k++){
+							temp[k] = 0;
+						}
+						for (int j = stackEnd - numChildren; j <= stackEnd; j++){
+							int q = j * K3;
+							for (int k = 0; k < K; k++){
+								int q0 = stack[q + k], q1 = stack[q + K + k], q2 = stack[q + 2 * K + k];
+								long s0 = sx[k], s1 = sx[K + k], s2 = sx[2 * K + k];
+								temp[k] += ((s1 - q1) * (s2 - q2) - sxy[k] + q1 * q2) * q0 * (q0 - 1L)
+									+ ((s2 - q2) * (s0 - q0) - sxy[K + k] + q2 * q0) * q1 * (q1 - 1L)
+									+ ((s0 - q0) * (s1 - q1) - sxy[2 * K + k] + q0 * q1) * q2 * (q2 - 1L);
+							}
+						}
+					}
+					long cnt = ((cmd & 16) != 0) ? queue[++i] : 1;
+					for (int k = 0; k < K; k++){
+						weight[k] += temp[k] * cnt;
+					}
+				}
+				stackEnd -= numChildren;
+				if ((cmd & 2) != 0){
+					int q = (stackEnd++) * K3;
+					for (int x = 0; x < K3; x++){
+						stack[q + x] = total[x] - stack[p + x];
+					}
+				}
+				if ((cmd & 4) != 0){
+					int q = (listEnd++) * K3;
+					for (int x = 0; x < K3; x++){
+						list[q + x] = total[x] - stack[p + x];
+					}
+				}
+			}
+			else {
+				System.arraycopy(list, (cmd >> 1) * K3, stack, (stackEnd++) * K3, K3);
+			}
+		}
+		System.arraycopy(weight, 0, weights, 0, count);
+	}
+	
+	public Long computeUpperbound(final BitSet b){
 		long t = System.nanoTime();
+		long weight;
+		if (segments == null) weight = traverseUpperbound(b);
+		else {
+			List<Callable<long[]>> tasks = new ArrayList<Callable<long[]>>();
+			for (final Polytree segment: segments){
+				tasks.add(new Callable<long[]>() {
+					@Override
+					public long[] call() {
+						return new long[]{segment.traverseUpperbound(b)};
+					}
+				});
+			}
+			weight = sumOverSegments(tasks, 1)[0];
+		}
+		time.addAndGet(System.nanoTime() - t);
+		return weight;
+	}
+	
+	/**
+	 * Computes the upper bound for a cluster over the gene trees of this polytree
+	 */
+	private long traverseUpperbound(BitSet b){
+		Scratch scratch = this.scratch.get().fit(this);
+		int[][] stack = scratch.stack, list = scratch.list;
+		long[] sx = scratch.sx, sxy = scratch.sxy;
+		int[] treeTotal = scratch.treeTotal;
 		long weight = 0;
 		int stackEnd = 0, listEnd = GlobalMaps.taxonIdentifier.taxonCount();
-		Iterator<STITreeCluster> tit = dataCollection.treeAllClusters.iterator();
+		int[] groupSizes = scratch.groupUpperbound;
+		treeTaxa.intersectionSizes(new BitSet[]{b}, groupSizes);
+		int tree = 0;
 		for (int i = 0, i_end = GlobalMaps.taxonIdentifier.taxonCount(); i < i_end; i++){
 			list[i][0] = b.get(i) ? 1 : 0;
 			list[i][1] = 1;
@@ -347,9 +683,9 @@ public class Polytree {
 		for (int i = 0, i_end = queue.length; i < i_end; i++){
 			int cmd = queue[i];
 			if (cmd == -1) {
-				BitSet all = tit.next().getBitSet();
-				treeTotal[0] = b.intersectionSize(all);
-				treeTotal[1] = all.cardinality();
+				int g = treeTaxa.group(tree++);
+				treeTotal[0] = groupSizes[g];
+				treeTotal[1] = treeTaxa.taxonCount(g);
 				continue;
 			}
 			if ((cmd & 1) != 0){
@@ -406,7 +742,34 @@ public class Polytree {
 				q[1] = p[1];
 			}
 		}
-		time += System.nanoTime() - t;
 		return weight;
 	}
+	
+	/**
+	 * Runs one task per segment in parallel and sums their results element-wise.
+	 * Called from a DP worker, tasks are forked to the pool of that worker,
+	 * so that segments do not add threads on top of those of the DP.
+	 */
+	private long[] sumOverSegments(List<Callable<long[]>> tasks, int size){
+		long[] ret = new long[size];
+		List<ForkJoinTask<long[]>> forked = new ArrayList<ForkJoinTask<long[]>>(tasks.size());
+		if (ForkJoinTask.inForkJoinPool()){
+			for (Callable<long[]> task: tasks){
+				forked.add(ForkJoinTask.adapt(task));
+			}
+			ForkJoinTask.invokeAll(forked);
+		}
+		else {
+			for (Callable<long[]> task: tasks){
+				forked.add(GlobalMaps.pool(threads).submit(task));
+			}
+		}
+		for (ForkJoinTask<long[]> f: forked){
+			long[] r = f.join();
+			for (int k = 0; k < size; k++){
+				ret[k] += r[k];
+			}
+		}
+		return ret;
+	}
 }
@@ -32,6 +32,17 @@ public class STBipartition {
 		}
 	}
 	
+	/**
+	 * Fills the key with a 128 bit fingerprint of this bipartition.
+	 * @param key an array of length two
+	 */
+	public void fingerprint(long[] key) {
+		key[0] = cluster2.getBitSet().fingerprint(
+				cluster1.getBitSet().fingerprint(0x9E3779B97F4A7C15L));
+		key[1] = cluster2.getBitSet().fingerprint(
+				cluster1.getBitSet().fingerprint(0xC2B2AE3D27D4EB4FL));
+	}
+	
 	@Override
 	public boolean equals(Object obj) {
 		STBipartition stb2 = (STBipartition) obj; 
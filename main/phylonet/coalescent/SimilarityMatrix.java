@@ -264,7 +264,11 @@ public class SimilarityMatrix {
 	}
 	
 	*/
-	void populateByQuartetDistance(List<STITreeCluster> treeAllClusters, List<Tree> geneTrees) {
+	/**
+	 * @param weights the number of copies of each gene tree
+	 */
+	void populateByQuartetDistance(List<STITreeCluster> treeAllClusters, List<Tree> geneTrees,
+			int[] weights) {
  			
  			this.similarityMatrix = new float[n][n];
  			long [][] denom = new long [n][n];
@@ -292,6 +296,7 @@ public class SimilarityMatrix {
  			}
  				
  			for (Tree tree :  geneTrees) {
+ 				int w = weights[k];
  				STITreeCluster treeallCL = treeAllClusters.get(k++);
  				
  				Integer treeall = treeallCL.getClusterSize();
@@ -336,7 +341,7 @@ public class SimilarityMatrix {
  							double sim = (totalPairs - lcp - rcp) // the number of fully resolved quartets
  									//+ (totalUnresolvedPairs - lcu - rcu) / 3.0 // we count partially resolved quartets
  									; 
- 							updateQuartetDistanceTri( left, right, similarityMatrix, sim);
+ 							updateQuartetDistanceTri( left, right, similarityMatrix, sim * w);
  						}
  					}
  				}
@@ -346,7 +351,7 @@ public class SimilarityMatrix {
  				int c = all.cardinality() - 2;
  				for (int l = all.nextSetBit(0); l >= 0; l=all.nextSetBit(l+1)) {
  					for (int r = all.nextSetBit(0); r >= 0; r=all.nextSetBit(r+1)) {
- 						denom[l][r] += c*(c-1)/2;
+ 						denom[l][r] += w * (long) (c*(c-1)/2);
  						denom[r][l] = denom[l][r];
  					}
  				}
@@ -0,0 +1,338 @@
+package phylonet.coalescent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import phylonet.tree.model.TNode;
+import phylonet.tree.model.Tree;
+import phylonet.tree.model.sti.STINode;
+import phylonet.tree.model.sti.STITree;
+
+/**
+ * A binary cache of the gene trees parsed from an input file, so that
+ * later runs on the same file skip parsing Newick. The cache is tied to
+ * the input file by its length and CRC32 checksum, and to whether trees
+ * were read as rooted; a cache that does not match is ignored and written
+ * again. Trees are cached as parsed, before trees with too few leaves are
+ * skipped and before taxa are registered, so those steps and all options
+ * apply the same as when parsing.
+ *
+ * Format (big-endian, as written by DataOutputStream):
+ *   -- MAGIC, VERSION, flags (1 for rooted)
+ *   -- Length and checksum of the input file
+ *   -- Number of names, then each name as its length and UTF-8 bytes
+ *   -- Number of trees, then for each tree its number of nodes (0 for an
+ *      empty line), its nodes in pre-order as two ints each (number of
+ *      children, and index of the name or -1 for none), and then
+ *      the distance of each node to its parent
+ *
+ * The cache is written to a temporary file that is then renamed, and is
+ * memory-mapped when read, in windows of at most 1GB. A cache that ends
+ * early or holds values that do not make trees is ignored and written again.
+ *
+ * @author smirarab
+ *
+ */
+final class TreeCache {
+
+	private static final int MAGIC = 0x41535452;
+	private static final int VERSION = 1;
+	/**
+	 * MAGIC, VERSION, flags, and the length and checksum of the input file
+	 */
+	private static final int HEADER_BYTES = 28;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private TreeCache() {
+	}
+
+	/**
+	 * @return trees saved in the cache, or null if the cache does not exist,
+	 * 	does not match the source file, or is incomplete
+	 */
+	static List<Tree> read(File cache, File source, boolean rooted) throws IOException {
+		if (!cache.isFile() || !matches(cache, source, rooted)) {
+			return null;
+		}
+		RandomAccessFile file = new RandomAccessFile(cache, "r");
+		try {
+			MappedInput in = new MappedInput(file.getChannel(), HEADER_BYTES);
+			String[] names = new String[in.count(4)];
+			for (int i = 0; i < names.length; i++) {
+				byte[] bytes = new byte[in.count(1)];
+				in.get(bytes);
+				names[i] = new String(bytes, UTF8);
+			}
+			int count = in.count(4);
+			List<Tree> trees = new ArrayList<Tree>(count);
+			for (int t = 0; t < count; t++) {
+				trees.add(readTree(in, names));
+			}
+			return trees;
+		} catch (BufferUnderflowException e) {
+			// The cache ends in the middle of a value
+			System.err.println("The tree cache " + cache + " is incomplete or damaged and is ignored");
+			return null;
+		} catch (DamagedCacheException e) {
+			System.err.println("The tree cache " + cache + " is incomplete or damaged and is ignored");
+			return null;
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Checks the header with a plain stream, so that a cache that does
+	 * not match is not mapped when it is written again
+	 */
+	private static boolean matches(File cache, File source, boolean rooted) throws IOException {
+		if (cache.length() < HEADER_BYTES) {
+			return false;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cache)));
+		try {
+			return in.readInt() == MAGIC && in.readInt() == VERSION
+					&& in.readInt() == (rooted ? 1 : 0) && in.readLong() == source.length()
+					&& in.readLong() == checksum(source);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static Tree readTree(MappedInput in, String[] names) throws IOException, DamagedCacheException {
+		// Each node takes two ints and a double
+		int nodeCount = in.count(16);
+		if (nodeCount == 0) {
+			return null;
+		}
+		STITree<Double> tree = new STITree<Double>(true);
+		List<STINode<Double>> nodes = new ArrayList<STINode<Double>>(nodeCount);
+		// Nodes still waiting for children, and how many they wait for
+		List<STINode<Double>> parents = new ArrayList<STINode<Double>>();
+		int[] waiting = new int[nodeCount];
+		for (int i = 0; i < nodeCount; i++) {
+			int children = in.getInt(), name = in.getInt();
+			if (children < 0 || name < -1 || name >= names.length
+					|| (i > 0 && parents.isEmpty())) {
+				throw new DamagedCacheException();
+			}
+			STINode<Double> node;
+			if (i == 0) {
+				node = tree.getRoot();
+				if (name >= 0) {
+					node.setName(names[name]);
+				}
+			} else {
+				int top = parents.size() - 1;
+				STINode<Double> parent = parents.get(top);
+				node = name >= 0 ? parent.createChild(names[name]) : parent.createChild();
+				if (--waiting[top] == 0) {
+					parents.remove(top);
+				}
+			}
+			nodes.add(node);
+			if (children > 0) {
+				waiting[parents.size()] = children;
+				parents.add(node);
+			}
+		}
+		if (!parents.isEmpty()) {
+			throw new DamagedCacheException();
+		}
+		for (int i = 0; i < nodeCount; i++) {
+			double distance = in.getDouble();
+			if (i > 0) {
+				nodes.get(i).setParentDistance(distance);
+			}
+		}
+		return tree;
+	}
+
+	/**
+	 * Thrown when values read from the cache do not make a valid cache
+	 */
+	private static final class DamagedCacheException extends Exception {
+		private static final long serialVersionUID = 1L;
+	}
+
+	/**
+	 * Reads a file through memory-mapped windows. A single mapping cannot
+	 * exceed 2GB, so larger caches are mapped one window at a time; a
+	 * window starts where the previous one ran out of whole values.
+	 */
+	private static final class MappedInput {
+		private static final long WINDOW = 1L << 30;
+		private final FileChannel channel;
+		private MappedByteBuffer buffer;
+		private long start = 0;
+
+		/**
+		 * @param position where reading starts
+		 */
+		MappedInput(FileChannel channel, long position) throws IOException {
+			this.channel = channel;
+			map(position);
+		}
+
+		private void map(long position) throws IOException {
+			start = position;
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, position,
+					Math.min(WINDOW, channel.size() - position));
+		}
+
+		/**
+		 * Makes sure that the next bytes values can be read from the buffer
+		 */
+		private void need(int bytes) throws IOException {
+			if (buffer.remaining() < bytes) {
+				map(start + buffer.position());
+			}
+		}
+
+		int getInt() throws IOException {
+			need(4);
+			return buffer.getInt();
+		}
+
+		long getLong() throws IOException {
+			need(8);
+			return buffer.getLong();
+		}
+
+		double getDouble() throws IOException {
+			need(8);
+			return buffer.getDouble();
+		}
+
+		/**
+		 * Reads a count of items of the given size, which have to fit in
+		 * the rest of the file
+		 */
+		int count(int bytes) throws IOException, DamagedCacheException {
+			int count = getInt();
+			if (count < 0 || (long) count * bytes > channel.size() - start - buffer.position()) {
+				throw new DamagedCacheException();
+			}
+			return count;
+		}
+
+		void get(byte[] bytes) throws IOException {
+			need(bytes.length);
+			buffer.get(bytes);
+		}
+	}
+
+	/**
+	 * Writes trees (as parsed from source) to the cache.
+	 * @param trees may include nulls for empty lines
+	 */
+	static void write(File cache, File source, boolean rooted, List<Tree> trees) throws IOException {
+		HashMap<String, Integer> index = new HashMap<String, Integer>();
+		List<String> names = new ArrayList<String>();
+		for (Tree tree : trees) {
+			if (tree == null) {
+				continue;
+			}
+			for (TNode node : tree.postTraverse()) {
+				String name = node.getName();
+				if (name != null && name.length() != 0 && !index.containsKey(name)) {
+					index.put(name, names.size());
+					names.add(name);
+				}
+			}
+		}
+		// Written to a temporary file first, so that an interrupted write
+		// leaves no cache that matches the input
+		File temp = new File(cache.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(rooted ? 1 : 0);
+			out.writeLong(source.length());
+			out.writeLong(checksum(source));
+			out.writeInt(names.size());
+			for (String name : names) {
+				byte[] bytes = name.getBytes(UTF8);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+			out.writeInt(trees.size());
+			List<TNode> preorder = new ArrayList<TNode>();
+			for (Tree tree : trees) {
+				if (tree == null) {
+					out.writeInt(0);
+					continue;
+				}
+				preorder.clear();
+				addPreorder(tree.getRoot(), preorder);
+				out.writeInt(preorder.size());
+				for (TNode node : preorder) {
+					String name = node.getName();
+					out.writeInt(node.getChildCount());
+					out.writeInt(name == null || name.length() == 0 ? -1 : index.get(name));
+				}
+				for (TNode node : preorder) {
+					out.writeDouble(node.isRoot() ? TNode.NO_DISTANCE : node.getParentDistance());
+				}
+			}
+		} finally {
+			out.close();
+		}
+		// renameTo does not replace an existing file on all platforms
+		if (!temp.renameTo(cache) && !(cache.delete() && temp.renameTo(cache))) {
+			throw new IOException("Could not write the tree cache " + cache);
+		}
+	}
+
+	private static void addPreorder(TNode node, List<TNode> preorder) {
+		// Children are pushed in reverse so that they come out in order
+		List<TNode> stack = new ArrayList<TNode>();
+		stack.add(node);
+		List<TNode> children = new ArrayList<TNode>();
+		while (!stack.isEmpty()) {
+			TNode n = stack.remove(stack.size() - 1);
+			preorder.add(n);
+			children.clear();
+			for (TNode child : n.getChildren()) {
+				children.add(child);
+			}
+			for (int i = children.size() - 1; i >= 0; i--) {
+				stack.add(children.get(i));
+			}
+		}
+	}
+
+	/**
+	 * @return the CRC32 checksum of the file
+	 */
+	static long checksum(File source) throws IOException {
+		CRC32 crc = new CRC32();
+		FileInputStream in = new FileInputStream(source);
+		try {
+			byte[] buffer = new byte[1 << 16];
+			for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+				crc.update(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+		return crc.getValue();
+	}
+}
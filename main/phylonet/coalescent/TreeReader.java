@@ -0,0 +1,144 @@
+package phylonet.coalescent;
+
+import java.io.CharArrayReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Supplies Newick trees one at a time, one tree per line.
+ *
+ * When reading from a file, the file is streamed: only the current tree is
+ * kept in memory, in a reused buffer. Internal node labels (e.g., support
+ * values) are dropped while reading, same as replacing \)[^,);]* with ).
+ * Empty lines are skipped.
+ *
+ * When reading from a list of strings, trees are given as they are.
+ *
+ * @author smirarab
+ *
+ */
+class TreeReader implements Closeable {
+
+	private static final int CHUNK_SIZE = 1 << 16;
+
+	private final Reader in;
+	private char[] chunk;
+	private int chunkPos = 0, chunkEnd = 0;
+	private char[] tree;
+	private int treeLength = 0;
+
+	private final Iterator<String> strings;
+	private String current;
+
+	public TreeReader(File file) throws FileNotFoundException {
+		this.in = new InputStreamReader(new FileInputStream(file));
+		this.chunk = new char[CHUNK_SIZE];
+		this.tree = new char[1024];
+		this.strings = null;
+	}
+
+	public TreeReader(List<String> trees) {
+		this.in = null;
+		this.strings = trees.iterator();
+	}
+
+	/**
+	 * Moves to the next tree
+	 * @return false if there are no more trees
+	 */
+	public boolean next() throws IOException {
+		if (strings != null) {
+			current = strings.hasNext() ? strings.next() : null;
+			return current != null;
+		}
+		do {
+			if (!readLine()) {
+				return false;
+			}
+		} while (treeLength == 0);
+		return true;
+	}
+
+	/**
+	 * Reads the next line into tree, dropping internal node labels
+	 * @return false if the end of file is reached before any character
+	 */
+	private boolean readLine() throws IOException {
+		treeLength = 0;
+		boolean inLabel = false;
+		boolean any = false;
+		while (true) {
+			if (chunkPos == chunkEnd) {
+				chunkEnd = in.read(chunk, 0, chunk.length);
+				chunkPos = 0;
+				if (chunkEnd <= 0) {
+					chunkEnd = 0;
+					return any;
+				}
+			}
+			char c = chunk[chunkPos++];
+			any = true;
+			if (c == '\n' || c == '\r') {
+				// The \n of a \r\n gives an empty line, which is skipped
+				return true;
+			}
+			if (inLabel) {
+				if (c != ',' && c != ')' && c != ';') {
+					continue;
+				}
+				inLabel = false;
+			}
+			if (c == ')') {
+				inLabel = true;
+			}
+			if (treeLength == tree.length) {
+				tree = Arrays.copyOf(tree, tree.length * 2);
+			}
+			tree[treeLength++] = c;
+		}
+	}
+
+	/**
+	 * @return true if the current tree is an empty string
+	 */
+	public boolean isEmpty() {
+		return strings != null ? current.length() == 0 : treeLength == 0;
+	}
+
+	/**
+	 * @return a reader of the current tree, to be given to NewickReader
+	 */
+	public Reader reader() {
+		if (strings != null) {
+			return new StringReader(current);
+		}
+		return new CharArrayReader(tree, 0, treeLength);
+	}
+
+	/**
+	 * @return the Newick string of the current tree
+	 */
+	@Override
+	public String toString() {
+		if (strings != null) {
+			return current;
+		}
+		return new String(tree, 0, treeLength);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (in != null) {
+			in.close();
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package phylonet.coalescent;
 
 import phylonet.tree.model.sti.STITreeCluster;
+import phylonet.util.BitSet;
 
 public class Tripartition extends AbstractPartition {
 	
@@ -66,6 +67,37 @@ public class Tripartition extends AbstractPartition {
 		}
 	}
 	
+	private static final long SEED1 = 0x9E3779B97F4A7C15L, SEED2 = 0xC2B2AE3D27D4EB4FL;
+	
+	/**
+	 * Fills the key with a 128 bit fingerprint of this tripartition,
+	 * used for looking up weights without keeping the tripartition itself. 
+	 * @param key an array of length two
+	 */
+	public void fingerprint(long[] key) {
+		fingerprint(cluster1.getBitSet(), cluster2.getBitSet(), cluster3.getBitSet(), key);
+	}
+	
+	/**
+	 * Fingerprint of the tripartition of three clusters. Does not depend
+	 * on the order of clusters, so they need not be put in canonical order.
+	 */
+	static void fingerprint(BitSet b1, BitSet b2, BitSet b3, long[] key) {
+		key[0] = b1.fingerprint(SEED1) + b2.fingerprint(SEED1) + b3.fingerprint(SEED1);
+		key[1] = b1.fingerprint(SEED2) + b2.fingerprint(SEED2) + b3.fingerprint(SEED2);
+	}
+	
+	/**
+	 * Fingerprint of the tripartition of b1, b2, and the rest of taxa, 
+	 * without building the third cluster.
+	 * @param union the union of b1 and b2
+	 */
+	static void fingerprintWithRest(BitSet b1, BitSet b2, BitSet union, long[] key) {
+		int n = GlobalMaps.taxonIdentifier.taxonCount();
+		key[0] = b1.fingerprint(SEED1) + b2.fingerprint(SEED1) + union.fingerprintOfComplement(SEED1, n);
+		key[1] = b1.fingerprint(SEED2) + b2.fingerprint(SEED2) + union.fingerprintOfComplement(SEED2, n);
+	}
+	
 	public STITreeCluster[] getClusters(){
 		return new STITreeCluster[]{cluster1, cluster2, cluster3};
 	}
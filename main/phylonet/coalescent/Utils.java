@@ -227,26 +227,44 @@ public class Utils {
     public static final Collection<Tree> greedyConsensus(Iterable<Tree> trees, 
     		double[] thresholds, boolean randomzie, int repeat, 
     		TaxonIdentifier taxonIdentifier, boolean keepclusters) {
+    	return greedyConsensus(trees, null, thresholds, randomzie, repeat, taxonIdentifier, keepclusters);
+    }
+
+    /***
+     * Greedy consensus with a set of thresholds, where trees have weights
+     * @param trees
+     * @param weights the number of copies of each tree, or null for one each
+     * @param thresholds
+     * @param randomzie
+     * @param repeat
+     * @param taxonIdentifier
+     * @param keepclusters should we keep clusters as node objects
+     * @return
+     */
+    public static final Collection<Tree> greedyConsensus(Iterable<Tree> trees, int[] weights,
+    		double[] thresholds, boolean randomzie, int repeat, 
+    		TaxonIdentifier taxonIdentifier, boolean keepclusters) {
     
     	List<Tree> outTrees = new ArrayList<Tree>();
 
         HashMap<STITreeCluster, Integer> count = new HashMap<STITreeCluster, Integer>();
-        int treecount = 0;
+        int treecount = 0, t = 0;
         for (Tree tree : trees) {
-        	treecount++;
+        	int w = weights == null ? 1 : weights[t++];
+        	treecount += w;
             List<STITreeCluster> geneClusters = Utils.getGeneClusters(tree, taxonIdentifier); //taxoncount changes
             for (STITreeCluster cluster: geneClusters) {
 
                 if (count.containsKey(cluster)) {
-                    count.put(cluster, count.get(cluster) + 1);
+                    count.put(cluster, count.get(cluster) + w);
                     continue;
                 }
             	STITreeCluster comp = cluster.complementaryCluster();
                 if (count.containsKey(comp)) {
-                    count.put(comp, count.get(comp) + 1);
+                    count.put(comp, count.get(comp) + w);
                     continue;
                 }
-                count.put(cluster, 1);
+                count.put(cluster, w);
             }
         }
         
@@ -8,6 +8,8 @@ import phylonet.tree.model.sti.STITreeCluster.Vertex;
 
 public class WQComputeMinCostTask extends AbstractComputeMinCostTask<Tripartition>{
 
+	private static final long serialVersionUID = 1L;
+
 	WQDataCollection wqDataCollection;
 	
 	public WQComputeMinCostTask(AbstractInference<Tripartition> inference, Vertex v,
@@ -42,6 +44,12 @@ public class WQComputeMinCostTask extends AbstractComputeMinCostTask<Tripartitio
 		return new Tripartition(vp.cluster1.getCluster(), vp.cluster2.getCluster(), vp.both.getCluster().complementaryCluster());
 	}
 
+	@Override
+	void fingerprint(VertexPair vp, long[] key) {
+		Tripartition.fingerprintWithRest(vp.cluster1.getCluster().getBitSet(),
+				vp.cluster2.getCluster().getBitSet(), vp.both.getCluster().getBitSet(), key);
+	}
+
 	@Override
 	Long defaultWeightForFullClusters() {
 		return 0l;
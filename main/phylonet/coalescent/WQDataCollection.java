@@ -1,6 +1,7 @@
 package phylonet.coalescent;
 
 import java.io.BufferedWriter;
+import java.io.DataInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -46,6 +47,14 @@ public class WQDataCollection extends AbstractDataCollection<Tripartition>
 	 * included in each gene tree
 	 */
 	List<STITreeCluster> treeAllClusters = new ArrayList<STITreeCluster>();
+	/**
+	 * The same, grouped by distinct sets of taxa
+	 */
+	GeneTreeTaxa treeTaxa;
+	/**
+	 * The number of copies of each gene tree (see DistinctGeneTrees)
+	 */
+	int[] treeWeights;
 
 	/**
 	 * Similarity matrices for individuals. Used for setting up set X
@@ -92,6 +101,7 @@ public class WQDataCollection extends AbstractDataCollection<Tripartition>
 		this.clusters = clusters;
 		this.SLOW = inference.options.getAddExtra() == 2;
 		this.originalInompleteGeneTrees = inference.trees;
+		this.treeWeights = inference.treeWeights;
 		this.completedGeeneTrees = new ArrayList<Tree>();
 		this.options = inference.options;
 	}
@@ -754,10 +764,16 @@ public class WQDataCollection extends AbstractDataCollection<Tripartition>
 		for (int ii=0; ii < secondRoundSampling; ii++) {
 			for (int j=0 ; j< allGreedies.length ; j++) {
 				try {
-
-					addBipartitionsFromSignleIndTreesToX(allGreedies[j].get(ii), baseTrees,
-
-							GlobalMaps.taxonNameMap.getSpeciesIdMapper().getSTTaxonIdentifier());
+					/*
+					 * Copies of a gene tree have the same greedy trees, but
+					 * polytomies are resolved by new random samples each
+					 * time, so each copy is added as in unmerged input.
+					 */
+					int copies = inference.options.getAddExtra() == 3 ? 1 : treeWeights[j];
+					for (int c = 0; c < copies; c++) {
+						addBipartitionsFromSignleIndTreesToX(allGreedies[j].get(ii), baseTrees,
+								GlobalMaps.taxonNameMap.getSpeciesIdMapper().getSTTaxonIdentifier());
+					}
 				} catch (Exception e) {
 					System.err.println(allGreedies[j].get(ii));
 					e.printStackTrace(); 
@@ -787,7 +803,9 @@ public class WQDataCollection extends AbstractDataCollection<Tripartition>
 				System.err
 						.println("calculating extra bipartitions to be added at level "
 								+ inference.options.getAddExtra() + " ...");
+				// With -p 3, completed trees are the extra trees and are not merged
 				this.addExtraBipartitionByHeuristics(genes,
+						inference.options.getAddExtra() == 3 ? null : treeWeights,
 						GlobalMaps.taxonNameMap.getSpeciesIdMapper()
 								.getSTTaxonIdentifier(),
 						this.speciesSimilarityMatrix,inference.options.getPolylimit());
@@ -807,6 +825,14 @@ public class WQDataCollection extends AbstractDataCollection<Tripartition>
 
 	}
 
+	@Override
+	public void loadSetX(AbstractInference<Tripartition> inf, DataInputStream in, String source)
+			throws IOException {
+		preProcess(inf);
+		System.err.println("Reading the set of clusters (X) from " + source);
+		readSetX(in, source);
+	}
+
 	/**
 	 * Calculates a distance matrix based on input gene trees. To be used for
 	 * gene tree completion.
@@ -818,7 +844,7 @@ public class WQDataCollection extends AbstractDataCollection<Tripartition>
 		this.similarityMatrix = new SimilarityMatrix(
 				GlobalMaps.taxonIdentifier.taxonCount());
 		this.similarityMatrix.populateByQuartetDistance(treeAllClusters,
-				this.originalInompleteGeneTrees);
+				this.originalInompleteGeneTrees, treeWeights);
 		this.speciesSimilarityMatrix = GlobalMaps.taxonNameMap
 				.getSpeciesIdMapper().convertToSpeciesDistance(
 						this.similarityMatrix);// this.similarityMatrix.convertToSpeciesDistance(spm);
@@ -835,11 +861,12 @@ public class WQDataCollection extends AbstractDataCollection<Tripartition>
 				+ this.originalInompleteGeneTrees.size());
 		// n = GlobalMaps.taxonIdentifier.taxonCount();
 
-		int haveMissing = 0;
+		int haveMissing = 0, t = 0;
 		for (Tree tree : this.originalInompleteGeneTrees) {
 			if (tree.getLeafCount() != GlobalMaps.taxonIdentifier.taxonCount()) {
-				haveMissing++;
+				haveMissing += treeWeights[t];
 			}
+			t++;
 			String[] gtLeaves = tree.getLeaves();
 			STITreeCluster gtAll = GlobalMaps.taxonIdentifier.newCluster();
 			long ni = gtLeaves.length;
@@ -849,6 +876,11 @@ public class WQDataCollection extends AbstractDataCollection<Tripartition>
 			treeAllClusters.add(gtAll);
 		}
 		System.err.println(haveMissing + " trees have missing taxa");
+		treeTaxa = new GeneTreeTaxa(treeAllClusters);
+		if (haveMissing > 0) {
+			System.err.println("Trees with missing taxa have "
+					+ treeTaxa.incompleteGroupCount() + " distinct sets of taxa");
+		}
 
 		return haveMissing;
 	}
@@ -890,7 +922,9 @@ public class WQDataCollection extends AbstractDataCollection<Tripartition>
 			this.completedGeeneTrees.add(trc);
 			if (completedFile != null) {
 				try {
-					completedFile.write(trc.toNewick() + " \n");
+					// One line for each copy of the gene tree
+					for (int i = treeWeights[t - 1]; i > 0; i--)
+						completedFile.write(trc.toNewick() + " \n");
 					completedFile.flush();
 				} catch (IOException e) {
 					throw new RuntimeException(e);
@@ -963,11 +997,13 @@ public class WQDataCollection extends AbstractDataCollection<Tripartition>
 	 * 
 	 * @param trees
 	 *            : the input trees contracted to the subsample
+	 * @param weights
+	 *            : the number of copies of each tree, or null for one each
 	 * @param sis
 	 *            : the single-individual subsample information
 	 */
 	void addExtraBipartitionByHeuristics(Collection<Tree> contractedTrees,
-			TaxonIdentifier tid, SimilarityMatrix sm, int polylimit) {
+			int[] weights, TaxonIdentifier tid, SimilarityMatrix sm, int polylimit) {
 
 		// Greedy trees. These will be based on sis taxon identifier
 		Collection<Tree> allGreedies;
@@ -985,7 +1021,7 @@ public class WQDataCollection extends AbstractDataCollection<Tripartition>
 		 * " complete trees found. Greedy-based completion not applicable.");
 		 * return; }
 		 */
-		allGreedies = Utils.greedyConsensus(contractedTrees,
+		allGreedies = Utils.greedyConsensus(contractedTrees, weights,
 				this.GREEDY_ADDITION_THRESHOLDS, true, 1, tid, true);
 		int sumDegrees = 0;
 		
@@ -1107,7 +1143,7 @@ public class WQDataCollection extends AbstractDataCollection<Tripartition>
 					boolean quadratic = (this.SLOW
 							|| (th < this.GREEDY_DIST_ADDITTION_LAST_THRESHOLD_INDX && j < this.GREEDY_ADDITION_DEFAULT_RUNS)) && greedyNode.getChildCount() <= polytomySizeLimit;
 
-					if (this.sampleAndResolve(childbs, contractedTrees, quadratic, sm, tid,true, false) && k < GREEDY_ADDITION_MAX) {
+					if (this.sampleAndResolve(childbs, contractedTrees, weights, quadratic, sm, tid,true, false) && k < GREEDY_ADDITION_MAX) {
 						k += this.GREEDY_ADDITION_IMPROVEMENT_REWARD;
 
 						if(k > max)
@@ -1160,29 +1196,33 @@ public class WQDataCollection extends AbstractDataCollection<Tripartition>
 	 * the given randomSample
 	 * 
 	 * @param genetrees
+	 * @param weights
+	 *            : the number of copies of each tree, or null for one each
 	 * @param randomSample
 	 * @return
 	 */
 	private HashMap<BitSet, Integer> returnBitSetCounts(Collection<Tree> genetrees,
-			HashMap<String, Integer> randomSample) {
+			int[] weights, HashMap<String, Integer> randomSample) {
 
 		HashMap<BitSet, Integer> counts = new HashMap<BitSet, Integer>();
 
+		int t = 0;
 		for (Tree gt : genetrees) {
+			int w = weights == null ? 1 : weights[t++];
 			List<BitSet> bsList = Utils.getBitsets(randomSample, gt);
 
 			for (BitSet bs : bsList) {
 				if (counts.containsKey(bs)) {
-					counts.put(bs, counts.get(bs) + 1);
+					counts.put(bs, counts.get(bs) + w);
 					continue;
 				}
 				BitSet bs2 = (BitSet) bs.clone();
 				bs2.flip(0, randomSample.size());
 				if (counts.containsKey(bs2)) {
-					counts.put(bs2, counts.get(bs2) + 1);
+					counts.put(bs2, counts.get(bs2) + w);
 					continue;
 				}
-				counts.put(bs, 1);
+				counts.put(bs, w);
 			}
 		}
 		return counts;
@@ -1197,7 +1237,7 @@ public class WQDataCollection extends AbstractDataCollection<Tripartition>
 	 * @return Whether any clusters of high frequency were added in this round
 	 */
 	private boolean sampleAndResolve(BitSet[] polytomyBSList, Collection<Tree> inputTrees,
-			boolean addQuadratic, SimilarityMatrix sm, TaxonIdentifier tid, 
+			int[] weights, boolean addQuadratic, SimilarityMatrix sm, TaxonIdentifier tid, 
 			boolean addByDistance, boolean forceResolution) {
 
 		boolean addedHighFreq = false;
@@ -1205,7 +1245,7 @@ public class WQDataCollection extends AbstractDataCollection<Tripartition>
 		HashMap<String, Integer> randomSample = randomSampleAroundPolytomy(
 				polytomyBSList, tid);
 
-		addedHighFreq = resolveLinearly(polytomyBSList, inputTrees, randomSample, tid, forceResolution);
+		addedHighFreq = resolveLinearly(polytomyBSList, inputTrees, weights, randomSample, tid, forceResolution);
 		if(addByDistance)
 			resolveByDistance(polytomyBSList, randomSample, addQuadratic, sm, tid);
 
@@ -1221,11 +1261,18 @@ public class WQDataCollection extends AbstractDataCollection<Tripartition>
 	 * @return
 	 */
 	private boolean resolveLinearly(BitSet[] polytomyBSList, Collection<Tree> inputTrees,
-			HashMap<String, Integer> randomSample, TaxonIdentifier tid, boolean forceresolution) {
+			int[] weights, HashMap<String, Integer> randomSample, TaxonIdentifier tid, boolean forceresolution) {
 		int sampleSize = randomSample.size();
 		// get bipartition counts in the induced trees//******************************************		
 		HashMap<BitSet, Integer> counts = returnBitSetCounts(
-				inputTrees, randomSample);
+				inputTrees, weights, randomSample);
+		int treeCount = inputTrees.size();
+		if (weights != null) {
+			treeCount = 0;
+			for (int w : weights) {
+				treeCount += w;
+			}
+		}
 
 		// sort bipartitions
 		TreeSet<Entry<BitSet, Integer>> countSorted = new TreeSet<Entry<BitSet, Integer>>(
@@ -1287,7 +1334,7 @@ public class WQDataCollection extends AbstractDataCollection<Tripartition>
 
 				if (addDoubleSubSampledBitSetToX(polytomyBSList, newbs, tid)) {
 					if (GREEDY_ADDITION_MIN_RATIO <= (entry.getValue() + 0.0)
-							/ inputTrees.size() && entry.getValue() > GREEDY_ADDITION_MIN_FREQ) {
+							/ treeCount && entry.getValue() > GREEDY_ADDITION_MIN_FREQ) {
 						addedHighFreq = true;
 					}
 					added = true;
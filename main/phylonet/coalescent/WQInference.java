@@ -27,11 +27,25 @@ public class WQInference extends AbstractInference<Tripartition> {
 
 	int forceAlg = -1;
 	long maxpossible;
+	/**
+	 * True when a given species tree is only scored (-q), without the DP
+	 */
+	private boolean scoringOnly = false;
 
 	public WQInference(Options inOptions, List<Tree> trees, List<Tree> extraTrees, List<Tree> toRemoveExtraTrees) {
 		super(inOptions, trees, extraTrees, toRemoveExtraTrees);
 
 		this.forceAlg = inOptions.getAlg();
+		// With -p 3, extra trees are paired with gene trees by position
+		if (trees != null && inOptions.getAddExtra() != 3) {
+			DistinctGeneTrees distinct = new DistinctGeneTrees(trees, inOptions.isRooted());
+			if (distinct.getTrees().size() < trees.size()) {
+				System.err.println(trees.size() + " gene trees have "
+						+ distinct.getTrees().size() + " distinct topologies");
+				this.trees = distinct.getTrees();
+				this.treeWeights = distinct.getWeights();
+			}
+		}
 	}
 
 
@@ -53,18 +67,23 @@ public class WQInference extends AbstractInference<Tripartition> {
 		Integer  allsides = null;
 		Iterator<STITreeCluster> tit = ((WQDataCollection)this.dataCollection).treeAllClusters.iterator();
 		boolean newTree = true;
+		int t = 0;
+		long w = 0;
 
 		Deque<Integer> stack = new ArrayDeque<Integer>();
 		// TODO: this should not use private stuff from weight calculator. 
 		//       redo to use tree objects. 
-		for (Integer gtb: ((WQWeightCalculator)this.weightCalculator).geneTreesAsInts()){
+		EncodedGeneTrees geneTreesAsInts = ((WQWeightCalculator)this.weightCalculator).geneTreesAsInts();
+		for (int g = 0, g_end = geneTreesAsInts.length(); g < g_end; g++){
+			int gtb = geneTreesAsInts.get(g);
 			if (newTree) {
 				allsides = tit.next().getBitSet().cardinality();
+				w = treeWeights[t++];
 				newTree = false;
 			}
 			if (gtb >= 0){
 				stack.push(1);
-			} else if (gtb == Integer.MIN_VALUE) {
+			} else if (gtb == EncodedGeneTrees.DELIMITER) {
 				stack.clear();
 				newTree = true;
 			}  else {
@@ -94,7 +113,7 @@ public class WQInference extends AbstractInference<Tripartition> {
 						 */
 						for (int k = j+1; k < children.size(); k++) {
 							Long c = children.get(k) + 0l;
-							weight += (a+b+c-3l) *a*b*c;
+							weight += w * (a+b+c-3l) *a*b*c;
 						}
 					}
 				}
@@ -111,8 +130,10 @@ public class WQInference extends AbstractInference<Tripartition> {
 		long four = 0;
 		long three = 0;
 		Iterator<Tree> ti = this.trees.iterator();
+		int k = 0;
 		System.err.print("Counting unresolvable quartets ... ");
 		for (STITreeCluster gtCL : ((WQDataCollection)this.dataCollection).treeAllClusters) {
+			long w = treeWeights[k++];
 			
 			long[] counts = new long [GlobalMaps.taxonNameMap.getSpeciesIdMapper().getSpeciesCount()]; // number of inds of each species
 			long size = gtCL.getClusterSize();
@@ -126,8 +147,8 @@ public class WQInference extends AbstractInference<Tripartition> {
 	        for (Long count: counts) {  
 				
 				// First compute how many quartets there are from single inds
-	        	ret += (count*(count-1l)*(count-2l))/6l*(size-count)+        // 3 inds of this species + 1 other
-	        			(count*(count-1l)*(count-2l)*(count-3l))/24l;    // 4 inds of this species
+	        	ret += w * ((count*(count-1l)*(count-2l))/6l*(size-count)+        // 3 inds of this species + 1 other
+	        			(count*(count-1l)*(count-2l)*(count-3l))/24l);    // 4 inds of this species
 				
 	        }
 	        
@@ -176,8 +197,8 @@ public class WQInference extends AbstractInference<Tripartition> {
     			for (Integer species : seenspecies){
 		        	long s1 = sum1[species], s2 = sum2[sindex], s3 = sum3[sindex], s4 = sum4[sindex];
 	        		if (s1 != 0 ) {
-        				four += s1*(Math.pow(s1,3)  + 8*s3 - 6*s1*s2) - 6*s4 + 3*s2*s2;
-    	        		three += (Math.pow(s1,3) + 2*s3 -3*s1*s2)*(size-counts[species]);
+        				four += w * (s1*(Math.pow(s1,3)  + 8*s3 - 6*s1*s2) - 6*s4 + 3*s2*s2);
+    	        		three += w * (Math.pow(s1,3) + 2*s3 -3*s1*s2)*(size-counts[species]);
 	        		}
 	        		sindex++;
 	        	}
@@ -192,6 +213,10 @@ public class WQInference extends AbstractInference<Tripartition> {
 		return ret;
 	}
 
+	boolean isScoringOnly() {
+		return scoringOnly;
+	}
+
 	void initializeWeightCalculator() {
 		((WQWeightCalculator)this.weightCalculator).setupGeneTrees(this);
 		if (this.forceAlg == 2) {
@@ -217,9 +242,11 @@ public class WQInference extends AbstractInference<Tripartition> {
 
 			this.dataCollection = newCounter(clusters);
 			weightCalculator = newWeightCalculator();
+			weightCalculator.setCacheLimit(options.getWeightCacheMB());
 
 			WQDataCollection wqDataCollection = (WQDataCollection) this.dataCollection;
 			wqDataCollection.preProcess(this);
+			this.scoringOnly = true;
 			this.initializeWeightCalculator();			
 			//ASTRAL IV SPECIFIC
 			this.maxpossible = this.calculateMaxPossible();
@@ -768,8 +795,8 @@ public class WQInference extends AbstractInference<Tripartition> {
 	@Override
 	Long getTotalCost(Vertex all) {
 		System.err.println("Normalized score (portion of input quartet trees satisfied before correcting for multiple individuals): " + 
-				all._max_score/4./this.maxpossible);
-		return (long) (all._max_score/4l);
+				dpTable.getMaxScore(all)/4./this.maxpossible);
+		return (long) (dpTable.getMaxScore(all)/4l);
 	}
 
 
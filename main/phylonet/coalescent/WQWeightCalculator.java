@@ -8,11 +8,8 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Stack;
 
-import phylonet.tree.model.TMutableNode;
 import phylonet.tree.model.TNode;
 import phylonet.tree.model.Tree;
-import phylonet.tree.model.sti.STINode;
-import phylonet.tree.model.sti.STITree;
 import phylonet.tree.model.sti.STITreeCluster;
 import phylonet.util.BitSet;
 
@@ -52,7 +49,25 @@ class WQWeightCalculator extends AbstractWeightCalculator<Tripartition> {
 
 		abstract Long calculateWeight(Tripartition trip);
 
+		void calculateWeights(Tripartition[] trips, long[] weights) {
+			for (int i = 0; i < trips.length; i++) {
+				weights[i] = calculateWeight(trips[i]);
+			}
+		}
+
 		abstract void setupGeneTrees(WQInference inference);
+
+		/**
+		 * @return true if weights can be calculated by several threads at once
+		 */
+		boolean isThreadSafe() {
+			return false;
+		}
+	}
+
+	@Override
+	boolean isThreadSafe() {
+		return this.algorithm.isThreadSafe();
 	}
 
 	@Override
@@ -61,6 +76,28 @@ class WQWeightCalculator extends AbstractWeightCalculator<Tripartition> {
 		return this.algorithm.calculateWeight(t);
 	}
 
+	@Override
+	void calculateWeights(List<Tripartition> ts, long[] weights,
+			AbstractComputeMinCostTask<Tripartition> minCostTask) {
+		this.algorithm.calculateWeights(ts.toArray(new Tripartition[ts.size()]), weights);
+	}
+
+	@Override
+	void fingerprint(Tripartition t, long[] key) {
+		t.fingerprint(key);
+	}
+
+	/**
+	 * Tripartitions of large clusters are the ones revisited by all
+	 * passes of the DP, so they are costlier to lose.
+	 */
+	@Override
+	int weightCost(Tripartition t) {
+		int n = GlobalMaps.taxonIdentifier.taxonCount();
+		int size = t.cluster1.getClusterSize() + t.cluster2.getClusterSize();
+		return 1 + (WeightCache.MAX_COST - 1) * size / n;
+	}
+
 	/**
 	 * one of ASTRAL-III way of calculating weights
 	 * Should be memory efficient
@@ -74,6 +111,40 @@ class WQWeightCalculator extends AbstractWeightCalculator<Tripartition> {
 			return polytree.WQWeightByTraversal(trip, this);
 		}
 
+		/**
+		 * Polytree traversals use per-thread scratch space
+		 */
+		@Override
+		boolean isThreadSafe() {
+			return true;
+		}
+
+		/**
+		 * Weighs tripartitions in batches of Polytree.BATCH_SIZE
+		 */
+		@Override
+		void calculateWeights(Tripartition[] trips, long[] weights) {
+			Tripartition[] batch = new Tripartition[Polytree.BATCH_SIZE];
+			int[] batchIndex = new int[Polytree.BATCH_SIZE];
+			long[] batchWeights = new long[Polytree.BATCH_SIZE];
+			int count = 0;
+			for (int i = 0; i < trips.length; i++) {
+				if (trips[i].cluster1 == trips[i].cluster2) {
+					weights[i] = calculateWeight(trips[i]);
+				} else {
+					batchIndex[count] = i;
+					batch[count++] = trips[i];
+				}
+				if (count == batch.length || (i == trips.length - 1 && count > 0)) {
+					polytree.WQWeightsByTraversal(batch, count, batchWeights);
+					for (int j = 0; j < count; j++) {
+						weights[batchIndex[j]] = batchWeights[j];
+					}
+					count = 0;
+				}
+			}
+		}
+
 		/***
 		* Each gene tree is represented as a list of integers, using positive numbers
 		* for leaves, where the number gives the index of the leaf. 
@@ -83,7 +154,10 @@ class WQWeightCalculator extends AbstractWeightCalculator<Tripartition> {
 		@Override
 		void setupGeneTrees(WQInference inference) {
 			System.err.println("Using polytree-based weight calculation.");
-			polytree = new Polytree(inference.trees, dataCollection);
+			// DP workers already keep every thread busy, and segments add
+			// traversal work; only split gene trees when one thread queries.
+			polytree = new Polytree(inference.trees, dataCollection,
+					inference.isScoringOnly() ? inference.options.getThreads() : 1);
 		}
 	}
 	
@@ -100,26 +174,27 @@ class WQWeightCalculator extends AbstractWeightCalculator<Tripartition> {
 		int[][] overlap = new int[GlobalMaps.taxonIdentifier.taxonCount() + 1][3];
 		int[][] overlapind = new int[GlobalMaps.taxonIdentifier.taxonCount() + 1][3];
 
-		Integer[] geneTreesAsInts;
+		EncodedGeneTrees geneTreesAsInts;
+		int[] groupSizes;
 
 		Long calculateWeight(Tripartition trip) {
 
-			long weight = 0;
-			int[] allsides = null;
-			Iterator<STITreeCluster> tit = dataCollection.treeAllClusters
-					.iterator();
+			long weight = 0, treeWeight = 0;
+			int[] treeWeights = dataCollection.treeWeights;
+			int[] allsides = new int[3];
+			GeneTreeTaxa treeTaxa = dataCollection.treeTaxa;
+			treeTaxa.intersectionSizes(new BitSet[] {trip.cluster1.getBitSet(),
+					trip.cluster2.getBitSet(), trip.cluster3.getBitSet()}, groupSizes);
+			int tree = 0;
 			boolean newTree = true;
 			int top = 0; // The first empty place on stack (generally)
-			for (Integer gtb : this.geneTreesAsInts) {
+			for (int g = 0, g_end = geneTreesAsInts.length(); g < g_end; g++) {
+				int gtb = geneTreesAsInts.get(g);
 				if (newTree) {
-					STITreeCluster all = tit.next();
-					allsides = new int[] {
-							trip.cluster1.getBitSet().intersectionSize(
-									all.getBitSet()),
-							trip.cluster2.getBitSet().intersectionSize(
-									all.getBitSet()),
-							trip.cluster3.getBitSet().intersectionSize(
-									all.getBitSet()) };
+					int sizes = treeTaxa.group(tree++) * 3;
+					allsides[0] = groupSizes[sizes];
+					allsides[1] = groupSizes[sizes + 1];
+					allsides[2] = groupSizes[sizes + 2];
 					newTree = false;
 				}
 				if (gtb >= 0) { // Leaf nodes
@@ -141,10 +216,12 @@ class WQWeightCalculator extends AbstractWeightCalculator<Tripartition> {
 						stack[top][2] = 0;
 					}
 					top++;
-				} else if (gtb == Integer.MIN_VALUE) { // delimiter between
+				} else if (gtb == EncodedGeneTrees.DELIMITER) { // delimiter between
 														// trees
 					top = 0;
 					newTree = true;
+					weight += treeWeight * treeWeights[tree - 1];
+					treeWeight = 0;
 				} else if (gtb == -2) { // Internal nodes
 
 					top--;
@@ -156,7 +233,7 @@ class WQWeightCalculator extends AbstractWeightCalculator<Tripartition> {
 					int side3s1 = allsides[1] - newSides1;
 					int side3s2 = allsides[2] - newSides2;
 
-					weight += F(stack[top][0], stack[top - 1][1], side3s2)
+					treeWeight += F(stack[top][0], stack[top - 1][1], side3s2)
 							+ F(stack[top][0], stack[top - 1][2], side3s1)
 							+ F(stack[top][1], stack[top - 1][0], side3s2)
 							+ F(stack[top][1], stack[top - 1][2], side3s0)
@@ -193,7 +270,7 @@ class WQWeightCalculator extends AbstractWeightCalculator<Tripartition> {
 								for (int k = nzc[2] - 1; k >= 0; k--) {
 									if ((overlapind[i][0] != overlapind[k][2])
 											&& (overlapind[j][1] != overlapind[k][2]))
-										weight += F(overlap[i][0],
+										treeWeight += F(overlap[i][0],
 												overlap[j][1],
 												overlap[k][2]);
 								}
@@ -210,61 +287,11 @@ class WQWeightCalculator extends AbstractWeightCalculator<Tripartition> {
 		}
 
 
-		/***
-		* Each gene tree is represented as a list of integers, using positive numbers
-		* for leaves, where the number gives the index of the leaf. 
-		* We use negative numbers for internal nodes, where the value gives the number of children. 
-		* Minus infinity is used for separating different genes. 
-		*/
 		@Override
 		void setupGeneTrees(WQInference inference) {
 			System.err.println("Using tree-based weight calculation.");
-			List<Integer> temp = new ArrayList<Integer>();
-
-			for (Tree tr : inference.trees) {
-				List<STINode> children = new ArrayList<STINode>();
-				int n = tr.getLeafCount()/2;
-				int dist = n;
-				TNode newroot = tr.getRoot();
-				for (TNode node : tr.postTraverse()) {
-					if (!node.isLeaf()) {                        
-						for (TNode child : node.getChildren()) {
-							if (child.isLeaf()) {
-								children.add((STINode) child);
-								break;
-							}
-						}
-						if (Math.abs(n - node.getLeafCount()) < dist) {
-							newroot = node;
-							dist = n - node.getLeafCount();
-						}
-					}
-				}
-				// Make the tree left-heavy so that the stack gets small
-				for (STINode child: children) {
-						STINode snode = child.getParent();
-						snode.removeChild((TMutableNode) child, false);
-						TMutableNode newChild = snode.createChild(child);
-						if (child == newroot) {
-							newroot = newChild;
-						}
-				}
-				if (newroot != tr.getRoot()){
-					((STITree)(tr)).rerootTreeAtEdge(newroot);
-				}
-				for (TNode node : tr.postTraverse()) {
-					if (node.isLeaf()) {
-						temp.add(GlobalMaps.taxonIdentifier.taxonId(node.getName()));
-					} else {
-						temp.add(-node.getChildCount());
-					}
-					if (node.isRoot()) {
-						temp.add(Integer.MIN_VALUE);
-					}
-				}
-			}
-			geneTreesAsInts = temp.toArray(new Integer[] {});
-
+			geneTreesAsInts = new EncodedGeneTrees(inference.trees);
+			groupSizes = dataCollection.treeTaxa.newSizes(3);
 		}
 
 	}
@@ -291,13 +318,13 @@ class WQWeightCalculator extends AbstractWeightCalculator<Tripartition> {
 
 		private void addTripartition(STITreeCluster l_cluster,
 				STITreeCluster r_cluster, STITreeCluster remaining, TNode node,
-				Map<Tripartition, Integer> geneTreeTripartitonCount) {
+				Map<Tripartition, Integer> geneTreeTripartitonCount, int weight) {
 
 			Tripartition trip = new Tripartition(l_cluster, r_cluster,
 					remaining);
 			geneTreeTripartitonCount.put(trip, geneTreeTripartitonCount
-					.containsKey(trip) ? geneTreeTripartitonCount.get(trip) + 1
-					: 1);
+					.containsKey(trip) ? geneTreeTripartitonCount.get(trip) + weight
+					: weight);
 		}
 
 		void setupGeneTrees(WQInference inference) {
@@ -315,6 +342,7 @@ class WQWeightCalculator extends AbstractWeightCalculator<Tripartition> {
 			for (Tree tr : geneTrees) {
 				// System.err.print(".");
 				Stack<STITreeCluster> stack = new Stack<STITreeCluster>();
+				int weight = inference.treeWeights[t];
 				STITreeCluster gtAll = treeCompteleClusters.get(t++);
 				BitSet gtAllBS = gtAll.getBitSet();
 
@@ -354,7 +382,7 @@ class WQWeightCalculator extends AbstractWeightCalculator<Tripartition> {
 									addTripartition(childbslist.get(i),
 											childbslist.get(j),
 											childbslist.get(k), node,
-											geneTreeTripartitonCount);
+											geneTreeTripartitonCount, weight);
 								}
 							}
 						}
@@ -427,7 +455,7 @@ class WQWeightCalculator extends AbstractWeightCalculator<Tripartition> {
 	}
 
 	// TODO: this is algorithm-specific should not be exposed. Fix.
-	public Integer[] geneTreesAsInts() {
+	public EncodedGeneTrees geneTreesAsInts() {
 		return ((TraversalWeightCalculator)tmpalgorithm).geneTreesAsInts;
 
 	}
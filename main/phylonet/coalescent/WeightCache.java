@@ -0,0 +1,436 @@
+package phylonet.coalescent;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A thread-safe cache of weights keyed by 128 bit fingerprints of partitions.
+ *
+ * Entries are kept as primitive longs (two for the key and one for the
+ * weight) in open-addressing tables. The cache is split into shards, each
+ * with its own lock, so that concurrent DP workers rarely wait on each other.
+ * Every get and put takes the lock of its shard (get also updates hit
+ * counts and credits).
+ *
+ * Two different partitions with the same fingerprint would share a weight;
+ * with 128 random bits this is not expected to happen in practice.
+ *
+ * The cache can be bounded to a given number of bytes. A bounded cache
+ * evicts entries using a CLOCK sweep where each entry has a credit.
+ * New entries start with a credit given by their cost (i.e., how
+ * expensive they are to recompute) and each hit adds to the credit.
+ * The sweep takes one credit away from each entry it passes and evicts
+ * the first entry with no credit left. Thus, entries that are expensive or
+ * often used stay longer. Evicted weights are simply recomputed.
+ *
+ * An unbounded cache grows until a shard reaches MAX_SHARD_CAPACITY; after
+ * that, new entries of the shard are not saved (a warning is printed once).
+ *
+ * @author smirarab
+ *
+ */
+class WeightCache {
+
+	/**
+	 * Returned by get when a key is not in the cache
+	 */
+	static final long MISSING = Long.MIN_VALUE;
+
+	/**
+	 * Costs are capped to this value
+	 */
+	static final int MAX_COST = 15;
+	private static final int MAX_CREDIT = 2 * MAX_COST;
+
+	private static final int SHARD_BITS = 6;
+	private static final int SHARDS = 1 << SHARD_BITS;
+	private static final int MIN_SHARD_CAPACITY = 16;
+	/**
+	 * Entries per shard are limited so that the backing array stays addressable
+	 */
+	private static final int MAX_SHARD_CAPACITY = 1 << 28;
+	private static final double LOAD_FACTOR = 0.7;
+	/**
+	 * Three longs for the entry, plus one byte for its credit
+	 */
+	static final int BYTES_PER_SLOT = 3 * 8 + 1;
+
+	private final Shard[] shards = new Shard[SHARDS];
+	private final boolean bounded;
+	/**
+	 * Set once an unbounded shard is full and drops new entries
+	 */
+	private volatile boolean dropping = false;
+
+	/**
+	 * Creates an unbounded cache
+	 * @param expectedSize a hint on the number of entries;
+	 * 	tables grow as needed.
+	 */
+	public WeightCache(int expectedSize) {
+		this(expectedSize, 0);
+	}
+
+	/**
+	 * @param expectedSize a hint on the number of entries;
+	 * 	tables grow as needed.
+	 * @param maxBytes the maximum size of tables in bytes; zero for no limit
+	 */
+	public WeightCache(int expectedSize, long maxBytes) {
+		int maxCapacity = MAX_SHARD_CAPACITY;
+		if (maxBytes > 0) {
+			maxCapacity = MIN_SHARD_CAPACITY;
+			while (maxCapacity < MAX_SHARD_CAPACITY &&
+					(long) SHARDS * (maxCapacity << 1) * BYTES_PER_SLOT <= maxBytes) {
+				maxCapacity <<= 1;
+			}
+		}
+		this.bounded = maxBytes > 0;
+		int perShard = (int) Math.min(maxCapacity,
+				(long) (expectedSize / LOAD_FACTOR) / SHARDS + 1);
+		int capacity = MIN_SHARD_CAPACITY;
+		while (capacity < perShard) {
+			capacity <<= 1;
+		}
+		for (int i = 0; i < SHARDS; i++) {
+			shards[i] = new Shard(capacity, maxCapacity, bounded);
+		}
+	}
+
+	private Shard shardFor(long hi) {
+		return shards[(int) (hi >>> (64 - SHARD_BITS))];
+	}
+
+	/**
+	 * Zero is used to mark empty slots
+	 */
+	private static long fixLo(long hi, long lo) {
+		return (hi == 0 && lo == 0) ? 1 : lo;
+	}
+
+	/**
+	 * Takes the lock of the shard of the key.
+	 * @return the weight saved for the key or MISSING
+	 */
+	public long get(long hi, long lo) {
+		return shardFor(hi).get(hi, fixLo(hi, lo));
+	}
+
+	public void put(long hi, long lo, long weight) {
+		put(hi, lo, weight, 1);
+	}
+
+	/**
+	 * @param cost how expensive the weight is to recompute, between 1 and MAX_COST.
+	 * 	Only used by bounded caches.
+	 */
+	public void put(long hi, long lo, long weight, int cost) {
+		if (!shardFor(hi).put(hi, fixLo(hi, lo), weight,
+				Math.max(1, Math.min(MAX_COST, cost))) && !dropping) {
+			dropping = true;
+			System.err.println("Warning: the weight cache is full; "
+					+ "further weights are not saved and will be recomputed when needed");
+		}
+	}
+
+	public boolean isBounded() {
+		return bounded;
+	}
+
+	/**
+	 * @return the number of entries
+	 */
+	public int size() {
+		long size = 0;
+		for (Shard shard : shards) {
+			size += shard.size();
+		}
+		return (int) Math.min(Integer.MAX_VALUE, size);
+	}
+
+	public long getHits() {
+		long ret = 0;
+		for (Shard shard : shards) {
+			ret += shard.hits();
+		}
+		return ret;
+	}
+
+	public long getMisses() {
+		long ret = 0;
+		for (Shard shard : shards) {
+			ret += shard.misses();
+		}
+		return ret;
+	}
+
+	public long getEvictions() {
+		long ret = 0;
+		for (Shard shard : shards) {
+			ret += shard.evictions();
+		}
+		return ret;
+	}
+
+	/**
+	 * A short summary of cache counters for progress messages
+	 */
+	public String statistics() {
+		return "cache hits: " + getHits() + ", misses: " + getMisses()
+				+ ", evictions: " + getEvictions();
+	}
+
+	public void clear() {
+		for (Shard shard : shards) {
+			shard.clear();
+		}
+	}
+
+	/**
+	 * Writes all entries; see read
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		for (Shard shard : shards) {
+			shard.write(out);
+		}
+	}
+
+	/**
+	 * Adds entries written by write
+	 */
+	public void read(DataInputStream in) throws IOException {
+		for (int i = 0; i < SHARDS; i++) {
+			for (int count = in.readInt(); count > 0; count--) {
+				put(in.readLong(), in.readLong(), in.readLong());
+			}
+		}
+	}
+
+	/**
+	 * Skips entries written by write, without reading them into a cache
+	 */
+	public static void skip(DataInputStream in) throws IOException {
+		for (int i = 0; i < SHARDS; i++) {
+			for (long bytes = 24L * in.readInt(); bytes > 0; ) {
+				int skipped = in.skipBytes((int) Math.min(bytes, Integer.MAX_VALUE));
+				if (skipped == 0) {
+					in.readByte();
+					skipped = 1;
+				}
+				bytes -= skipped;
+			}
+		}
+	}
+
+	/**
+	 * One lock-protected open-addressing table with linear probing.
+	 * Each slot takes three consecutive longs: key high bits,
+	 * key low bits, and the weight. Bounded shards also keep a credit per slot.
+	 */
+	private static final class Shard {
+		private long[] table;
+		private byte[] credit;
+		private int capacity;
+		private final int maxCapacity;
+		private int size = 0;
+		private int hand = 0;
+		private long hits = 0, misses = 0, evictions = 0;
+
+		Shard(int capacity, int maxCapacity, boolean bounded) {
+			this.capacity = capacity;
+			this.maxCapacity = maxCapacity;
+			this.table = new long[capacity * 3];
+			this.credit = bounded ? new byte[capacity] : null;
+		}
+
+		private static int home(long lo, int mask) {
+			return (int) (lo ^ (lo >>> 32)) & mask;
+		}
+
+		private boolean isEmpty(int i) {
+			return table[i * 3] == 0 && table[i * 3 + 1] == 0;
+		}
+
+		/**
+		 * @return the slot of the key, or -1 if it is not in the table
+		 */
+		private int slot(long hi, long lo) {
+			int mask = capacity - 1;
+			for (int i = home(lo, mask);; i = (i + 1) & mask) {
+				int p = i * 3;
+				long khi = table[p], klo = table[p + 1];
+				if (khi == hi && klo == lo) {
+					return i;
+				}
+				if (khi == 0 && klo == 0) {
+					return -1;
+				}
+			}
+		}
+
+		synchronized long get(long hi, long lo) {
+			int i = slot(hi, lo);
+			if (i < 0) {
+				misses++;
+				return MISSING;
+			}
+			hits++;
+			if (credit != null && credit[i] < MAX_CREDIT) {
+				credit[i]++;
+			}
+			return table[i * 3 + 2];
+		}
+
+		/**
+		 * @return false if the entry was dropped because an unbounded shard is full
+		 */
+		synchronized boolean put(long hi, long lo, long weight, int cost) {
+			int i = slot(hi, lo);
+			if (i >= 0) {
+				// Overwritten in place, so nothing needs to be evicted
+				table[i * 3 + 2] = weight;
+			} else {
+				if (size + 1 > capacity * LOAD_FACTOR) {
+					if (capacity < maxCapacity) {
+						resize(capacity << 1);
+					} else if (credit != null) {
+						evict();
+					} else if (size + 1 >= capacity) {
+						return false;
+					}
+				}
+				i = -insert(table, capacity, hi, lo, weight) - 1;
+				size++;
+			}
+			if (credit != null) {
+				credit[i] = (byte) Math.max(credit[i], cost);
+			}
+			return true;
+		}
+
+		synchronized int size() {
+			return size;
+		}
+
+		synchronized long hits() {
+			return hits;
+		}
+
+		synchronized long misses() {
+			return misses;
+		}
+
+		synchronized long evictions() {
+			return evictions;
+		}
+
+		synchronized void write(DataOutputStream out) throws IOException {
+			out.writeInt(size);
+			for (int p = 0; p < table.length; p += 3) {
+				if (table[p] != 0 || table[p + 1] != 0) {
+					out.writeLong(table[p]);
+					out.writeLong(table[p + 1]);
+					out.writeLong(table[p + 2]);
+				}
+			}
+		}
+
+		synchronized void clear() {
+			Arrays.fill(table, 0);
+			if (credit != null) {
+				Arrays.fill(credit, (byte) 0);
+			}
+			size = 0;
+		}
+
+		/**
+		 * @return the slot used; negative (-slot - 1) if the slot was empty before
+		 * 	(always the case when the key is not in the table)
+		 */
+		private static int insert(long[] table, int capacity, long hi, long lo, long weight) {
+			int mask = capacity - 1;
+			for (int i = home(lo, mask);; i = (i + 1) & mask) {
+				int p = i * 3;
+				long khi = table[p], klo = table[p + 1];
+				if (khi == 0 && klo == 0) {
+					table[p] = hi;
+					table[p + 1] = lo;
+					table[p + 2] = weight;
+					return -i - 1;
+				}
+				if (khi == hi && klo == lo) {
+					table[p + 2] = weight;
+					return i;
+				}
+			}
+		}
+
+		/**
+		 * Runs the CLOCK hand until an entry without credit is found and removes it
+		 */
+		private void evict() {
+			int mask = capacity - 1;
+			while (true) {
+				int i = hand;
+				hand = (hand + 1) & mask;
+				if (isEmpty(i)) {
+					continue;
+				}
+				if (credit[i] > 0) {
+					credit[i]--;
+					continue;
+				}
+				remove(i);
+				evictions++;
+				return;
+			}
+		}
+
+		/**
+		 * Removes the entry at slot i and shifts back later entries of
+		 * the same probe run so that lookups never hit a false gap.
+		 */
+		private void remove(int i) {
+			int mask = capacity - 1;
+			int j = i;
+			while (true) {
+				j = (j + 1) & mask;
+				if (isEmpty(j)) {
+					break;
+				}
+				int k = home(table[j * 3 + 1], mask);
+				boolean stays = (i <= j) ? (i < k && k <= j) : (i < k || k <= j);
+				if (stays) {
+					continue;
+				}
+				System.arraycopy(table, j * 3, table, i * 3, 3);
+				credit[i] = credit[j];
+				i = j;
+			}
+			table[i * 3] = 0;
+			table[i * 3 + 1] = 0;
+			table[i * 3 + 2] = 0;
+			credit[i] = 0;
+			size--;
+		}
+
+		private void resize(int newCapacity) {
+			long[] newTable = new long[newCapacity * 3];
+			byte[] newCredit = credit == null ? null : new byte[newCapacity];
+			for (int p = 0, i = 0; p < table.length; p += 3, i++) {
+				if (table[p] != 0 || table[p + 1] != 0) {
+					int ni = insert(newTable, newCapacity, table[p], table[p + 1], table[p + 2]);
+					if (newCredit != null) {
+						newCredit[-ni - 1] = credit[i];
+					}
+				}
+			}
+			table = newTable;
+			credit = newCredit;
+			capacity = newCapacity;
+			hand = 0;
+		}
+	}
+}
@@ -2,12 +2,9 @@ package phylonet.tree.model.sti;
 
 import phylonet.coalescent.GlobalMaps;
 import phylonet.coalescent.TaxonIdentifier;
-import phylonet.coalescent.IClusterCollection.VertexPair;
 import phylonet.util.BitSet;
 
-import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.List;
 
 
 /**
@@ -257,11 +254,10 @@ public class STITreeCluster implements Iterable<Integer>
   }
   
   /**
-   * A node in the dynamic programming. Thus, it includes
-   *   -- A cluster that we are trying to divide (the instance of the outer class)
-   *   -- A best resolution of this cluster into two cluster (min_lc and min_rc)
-   *   -- The score of the best resolution (_max_score)
-   *   -- Whether this nodes has been processed (_done)
+   * A node in the dynamic programming. It is a cluster that we are trying 
+   * to divide (the instance of the outer class) and an ID. The state of 
+   * the dynamic programming for the vertex (its best resolution, scores,
+   * and whether it has been processed) is kept by the DP table under that ID. 
    * @author smirarab
    *
    */
@@ -269,22 +265,25 @@ public class STITreeCluster implements Iterable<Integer>
 		//public STITreeCluster _cluster = null;
 		//public int _el_num = -1;
 		//public int _min_cost = -1;
-		public double _max_score = Integer.MIN_VALUE;
-		public double _estimated = Integer.MIN_VALUE;
-		public double _upper_bound = Integer.MAX_VALUE;
-		public double _c = 0;
-		public Vertex _min_lc = this._min_rc = null;
-		public Vertex _min_rc;
-		public List<Vertex> _subcl = null;	 // Don't matter	
-		public byte _done = 0; // 0 for not, 1 for upper bound, 2 for estimated, 3 for yes
-		public ArrayList<VertexPair> clusterResolutions = null;
+		private int id = -1;
 		
 		public Vertex() {
 			super();
 		}
 		
+		/**
+		 * @return the ID given to this vertex by the DP table, or -1
+		 */
+		public int getId() {
+			return id;
+		}
+		
+		public void setId(int id) {
+			this.id = id;
+		}
+		
 		public String toString() {
-			return STITreeCluster.this.toString() + "/" + this._max_score;
+			return STITreeCluster.this.toString() + "/" + this.id;
 		}
 		
 		public STITreeCluster getCluster() {
@@ -351,6 +351,23 @@ public class BitSet implements Cloneable, Serializable {
 	return sum;
     }
 
+    /**
+     * Same as intersectionSize of this bitset with each of the given sets.
+     * Sets are taken one at a time; the words of this bitset stay in cache
+     * and each inner loop is as simple as that of intersectionSize.
+     * @param sizes receives the intersection size of sets[x] at from + x
+     */
+    public void intersectionSizes(BitSet[] sets, int[] sizes, int from) {
+	long[] w = words;
+	for (int x = 0; x < sets.length; x++) {
+	    long[] ws = sets[x].words;
+	    int sum = 0;
+	    for (int i = Math.min(wordsInUse, sets[x].wordsInUse) - 1; i >= 0; i--)
+		sum += Long.bitCount(w[i] & ws[i]);
+	    sizes[from + x] = sum;
+	}
+    }
+
     public int cardinality() {
 	int sum = 0;
 	for (int i = 0; i < wordsInUse; i++)
@@ -440,6 +457,51 @@ public class BitSet implements Cloneable, Serializable {
 	return hash;
     }
 
+    /**
+     * Continues a 64 bit hash of a sequence of bitsets with this bitset.
+     * Unlike hashCode, this is meant to be used as (part of) a fingerprint,
+     * so every word is fully mixed.
+     * @param h the hash so far (or a seed)
+     * @return the hash after including this bitset
+     */
+    public long fingerprint(long h) {
+	for (int i = 0; i < wordsInUse; i++)
+	    h = mix64(h ^ words[i]) + i;
+	return mix64(h ^ wordsInUse);
+    }
+
+    /**
+     * Same as fingerprint(h) of a copy of this bitset with bits 0 to 
+     * nbits - 1 flipped, but without making the copy.
+     */
+    public long fingerprintOfComplement(long h, int nbits) {
+	if (nbits <= 0)
+	    return fingerprint(h);
+	int flipped = wordIndex(nbits - 1) + 1;
+	long lastWordMask = WORD_MASK >>> -nbits;
+	int inUse = Math.max(flipped, wordsInUse);
+	while (inUse > 0 && complementWord(inUse - 1, flipped, lastWordMask) == 0)
+	    inUse--;
+	for (int i = 0; i < inUse; i++)
+	    h = mix64(h ^ complementWord(i, flipped, lastWordMask)) + i;
+	return mix64(h ^ inUse);
+    }
+
+    private long complementWord(int i, int flipped, long lastWordMask) {
+	long w = i < wordsInUse ? words[i] : 0;
+	if (i < flipped - 1)
+	    return ~w;
+	if (i == flipped - 1)
+	    return w ^ lastWordMask;
+	return w;
+    }
+
+    private static long mix64(long z) {
+	z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+	z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+	return z ^ (z >>> 31);
+    }
+
     public int size() {
 	return words.length * 64;
     }
@@ -0,0 +1,97 @@
+#!/bin/bash
+
+# Regression tests. Runs ASTRAL on the bundled test data with various
+# options and checks that each run finds the score of ASTRAL without them.
+# Run from the top directory: ./test.sh
+
+set -u
+
+data=main/test_data
+tmp=`mktemp -d`
+trap "rm -rf $tmp" EXIT
+classpath=$tmp/classes:lib/main.jar:lib/colt.jar:lib/JSAP-2.1.jar
+failed=0
+
+mkdir $tmp/classes
+cd main
+javac -source 1.8 -target 1.8 -d $tmp/classes -classpath ../lib/main.jar:../lib/colt.jar:../lib/JSAP-2.1.jar phylonet/util/BitSet.java phylonet/coalescent/*java phylonet/tree/model/sti/STITreeCluster.java phylonet/tree/io/NewickWriter.java || exit 1
+cd ..
+
+astral() {
+	java -Xss8m -cp $classpath phylonet.coalescent.CommandLine -o $tmp/out.tre "$@" > $tmp/log 2>&1
+}
+
+# check <test name> <expected score> <arguments>: runs ASTRAL and checks the final score
+check() {
+	name=$1
+	expected=$2
+	shift 2
+	astral "$@"
+	score=`grep "^Final quartet score is:" $tmp/log | sed -e "s/.*: //"`
+	if [ "$score" == "$expected" ]; then
+		echo "ok   $name"
+	else
+		echo "FAIL $name: expected score $expected, found ${score:-none}"
+		failed=$((failed + 1))
+	fi
+}
+
+# expect <test name> <pattern>: checks the log of the last run
+expect() {
+	if ! grep -q "$2" $tmp/log; then
+		echo "FAIL $1: no \"$2\" in the log"
+		failed=$((failed + 1))
+	fi
+}
+
+check "one thread" 25526915 -i $data/song_mammals.424.gene.tre -T 1
+check "three threads" 25526915 -i $data/song_mammals.424.gene.tre -T 3
+
+# Only scoring a tree (-q) splits the polytree into segments of gene trees
+cp $tmp/out.tre $tmp/species.tre
+check "scoring, three threads" 25526915 -i $data/song_mammals.424.gene.tre -q $tmp/species.tre -T 3
+expect "scoring, three threads" "Polytree is split into 3 segments"
+check "three threads, primates" 6042 -i $data/simulated_primates_5X.10.gene.tre -T 3
+
+# A bounded weight cache has to evict weights on this input
+check "bounded weight cache" 339023690 -i $data/1KP-genetrees.tre --weight-cache-mb 1
+expect "bounded weight cache" "evictions: [1-9]"
+
+check "bottom-up" 25526915 -i $data/song_mammals.424.gene.tre --dp-engine bottom-up
+check "bottom-up, three threads" 25526915 -i $data/song_mammals.424.gene.tre --dp-engine bottom-up -T 3
+
+# Bootstrap gene trees repeat topologies, which are merged and weighed
+check "repeated gene trees" 1187263 -i $data/simulated_primates_5X.10.bootstrap.gene.tre
+expect "repeated gene trees" "2000 gene trees have 810 distinct topologies"
+expect "repeated gene trees" "Number of Clusters after addition by greedy: 787$"
+
+check "tree cache, written" 25526915 -i $data/song_mammals.424.gene.tre --tree-cache $tmp/trees
+check "tree cache, read" 25526915 -i $data/song_mammals.424.gene.tre --tree-cache $tmp/trees
+expect "tree cache, read" "Trees loaded from the cache"
+# A cache cut short (as by an interrupted write) is parsed and written again
+truncate -s 20000 $tmp/trees
+check "tree cache, truncated" 25526915 -i $data/song_mammals.424.gene.tre --tree-cache $tmp/trees
+expect "tree cache, truncated" "Parsed trees are cached in"
+
+check "search space, saved" 25526915 -i $data/song_mammals.424.gene.tre --save-searchspace $tmp/x
+expect "search space, saved" "Number of Clusters after addition by greedy: 1933$"
+check "search space, loaded" 25526915 -i $data/song_mammals.424.gene.tre --load-searchspace $tmp/x
+expect "search space, loaded" "Number of clusters read: 1933$"
+
+# Interrupts a run once it has saved the state of its DP, and resumes it
+java -Xss8m -cp $classpath phylonet.coalescent.CommandLine -o $tmp/out.tre -i $data/1KP-genetrees.tre \
+	--checkpoint $tmp/checkpoint --checkpoint-interval 0.01 > $tmp/log 2>&1 &
+pid=$!
+while [ ! -f $tmp/checkpoint/dp ] && kill -0 $pid 2> /dev/null; do
+	sleep 1
+done
+kill -9 $pid
+wait $pid 2> /dev/null
+check "checkpoint, resumed" 339023690 -i $data/1KP-genetrees.tre --checkpoint $tmp/checkpoint --resume
+expect "checkpoint, resumed" "Resuming the dynamic programming"
+
+if [ $failed -ne 0 ]; then
+	echo "$failed failed"
+	exit 1
+fi
+echo "All tests passed"